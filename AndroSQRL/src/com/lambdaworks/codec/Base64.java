@@ -2,6 +2,13 @@
 
 package com.lambdaworks.codec;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
 import java.util.Arrays;
 
 /**
@@ -13,6 +20,12 @@ import java.util.Arrays;
  * Decoding assumes correct input, the caller is responsible for ensuring that the input
  * contains no invalid characters.
  *
+ * The instances {@link #STANDARD}, {@link #STANDARD_UNPADDED}, {@link #URL} and
+ * {@link #URL_UNPADDED} additionally encode and decode between caller-supplied arrays,
+ * buffers and {@link CharSequence}s without intermediate copies, and wrap streams for
+ * large payloads. Their decoders skip whitespace, accept input with or without padding
+ * and reject invalid characters.
+ *
  * @author Will Glozer
  */
 public class Base64 {
@@ -28,6 +41,30 @@ public class Base64 {
         decode[pad] = 0;
     }
 
+    /** Standard alphabet (RFC 4648 section 4) with padding. */
+    public static final Base64 STANDARD          = new Base64(encode, pad);
+    /** Standard alphabet (RFC 4648 section 4) without padding. */
+    public static final Base64 STANDARD_UNPADDED = new Base64(encode, (char) 0);
+    /** URL and filename safe alphabet (RFC 4648 section 5) with padding. */
+    public static final Base64 URL               = new Base64(urlAlphabet(), pad);
+    /** URL and filename safe alphabet (RFC 4648 section 5) without padding, as used by SQRL. */
+    public static final Base64 URL_UNPADDED      = new Base64(urlAlphabet(), (char) 0);
+
+    private final char[] alphabet;
+    private final int[]  table;
+    private final char   padding;
+
+    private Base64(char[] alphabet, char padding) {
+        this.alphabet = alphabet;
+        this.table    = new int[128];
+        this.padding  = padding;
+
+        Arrays.fill(table, -1);
+        for (int i = 0; i < alphabet.length; i++) {
+            table[alphabet[i]] = i;
+        }
+    }
+
     /**
      * Decode base64 chars to bytes.
      *
@@ -154,4 +191,408 @@ public class Base64 {
 
         return dst;
     }
+
+    /**
+     * Get the number of chars {@code len} bytes encode to.
+     *
+     * @param len   Number of bytes.
+     *
+     * @return Number of chars.
+     */
+    public int encodedLength(int len) {
+        if (padding != 0) return (len + 2) / 3 * 4;
+        return len / 3 * 4 + (len % 3 == 0 ? 0 : len % 3 + 1);
+    }
+
+    /**
+     * Get the number of bytes a range of base64 chars decodes to, ignoring whitespace.
+     *
+     * @param src   Base64 encoded data.
+     * @param si    Offset of the first char.
+     * @param len   Number of chars.
+     *
+     * @return Number of bytes.
+     */
+    public int decodedLength(CharSequence src, int si, int len) {
+        int count = 0;
+        for (int i = si; i < si + len; i++) {
+            char c = src.charAt(i);
+            if (c == '=') break;
+            if (c > ' ') count++;
+        }
+        return count / 4 * 3 + (count % 4 == 0 ? 0 : count % 4 - 1);
+    }
+
+    /**
+     * Encode bytes to a string.
+     *
+     * @param src   Bytes to encode.
+     *
+     * @return Encoded string.
+     */
+    public String encodeToString(byte[] src) {
+        char[] dst = new char[encodedLength(src.length)];
+        encode(src, 0, src.length, dst, 0);
+        return new String(dst);
+    }
+
+    /**
+     * Encode a range of bytes into a caller-supplied char array.
+     *
+     * @param src   Bytes to encode.
+     * @param si    Offset of the first byte.
+     * @param len   Number of bytes.
+     * @param dst   Destination, must have room for {@link #encodedLength} chars.
+     * @param di    Offset of the first char.
+     *
+     * @return Number of chars written.
+     */
+    public int encode(byte[] src, int si, int len, char[] dst, int di) {
+        int end = si + len - len % 3;
+        int start = di;
+
+        while (si < end) {
+            int n = (src[si++] & 0xff) << 16 | (src[si++] & 0xff) << 8 | (src[si++] & 0xff);
+            dst[di++] = alphabet[(n >>> 18) & 0x3f];
+            dst[di++] = alphabet[(n >>> 12) & 0x3f];
+            dst[di++] = alphabet[(n >>>  6) & 0x3f];
+            dst[di++] = alphabet[n          & 0x3f];
+        }
+
+        int rem = len % 3;
+        if (rem > 0) {
+            int b0 = src[si] & 0xff;
+            int b1 = rem == 2 ? src[si + 1] & 0xff : 0;
+            di += tail(b0, b1, rem, dst, di);
+        }
+
+        return di - start;
+    }
+
+    /**
+     * Encode the remaining bytes of a buffer into a char buffer. Both buffers' positions
+     * are advanced.
+     *
+     * @param src   Bytes to encode.
+     * @param dst   Destination, must have room for {@link #encodedLength} chars.
+     *
+     * @return Number of chars written.
+     */
+    public int encode(ByteBuffer src, CharBuffer dst) {
+        int start = dst.position();
+
+        if (src.hasArray() && dst.hasArray()) {
+            int len = src.remaining();
+            int n = encode(src.array(), src.arrayOffset() + src.position(), len,
+                           dst.array(), dst.arrayOffset() + dst.position());
+            src.position(src.limit());
+            dst.position(start + n);
+            return n;
+        }
+
+        while (src.remaining() >= 3) {
+            int n = (src.get() & 0xff) << 16 | (src.get() & 0xff) << 8 | (src.get() & 0xff);
+            dst.put(alphabet[(n >>> 18) & 0x3f]);
+            dst.put(alphabet[(n >>> 12) & 0x3f]);
+            dst.put(alphabet[(n >>>  6) & 0x3f]);
+            dst.put(alphabet[n          & 0x3f]);
+        }
+
+        int rem = src.remaining();
+        if (rem > 0) {
+            char[] chars = new char[4];
+            int b0 = src.get() & 0xff;
+            int b1 = rem == 2 ? src.get() & 0xff : 0;
+            dst.put(chars, 0, tail(b0, b1, rem, chars, 0));
+        }
+
+        return dst.position() - start;
+    }
+
+    /**
+     * Decode base64 chars to a new byte array.
+     *
+     * @param src   Base64 encoded data.
+     *
+     * @return Decoded bytes.
+     *
+     * @throws IllegalArgumentException when the input is not valid base64.
+     */
+    public byte[] decode(CharSequence src) {
+        byte[] dst = new byte[decodedLength(src, 0, src.length())];
+        decode(src, 0, src.length(), dst, 0);
+        return dst;
+    }
+
+    /**
+     * Decode a range of base64 chars into a caller-supplied byte array.
+     *
+     * @param src   Base64 encoded data.
+     * @param si    Offset of the first char.
+     * @param len   Number of chars.
+     * @param dst   Destination, must have room for {@link #decodedLength} bytes.
+     * @param di    Offset of the first byte.
+     *
+     * @return Number of bytes written.
+     *
+     * @throws IllegalArgumentException when the input is not valid base64.
+     */
+    public int decode(CharSequence src, int si, int len, byte[] dst, int di) {
+        int start = di;
+        int n = 0, count = 0;
+
+        for (int i = si; i < si + len; i++) {
+            char c = src.charAt(i);
+            if (c == '=') break;
+            if (c <= ' ') continue;
+
+            n = n << 6 | value(c);
+            if (++count == 4) {
+                dst[di++] = (byte) (n >> 16);
+                dst[di++] = (byte) (n >>  8);
+                dst[di++] = (byte) n;
+                n = count = 0;
+            }
+        }
+
+        switch (count) {
+            case 1: throw new IllegalArgumentException("Truncated base64 input");
+            case 2: dst[di++] = (byte) (n >> 4); break;
+            case 3: dst[di++] = (byte) (n >> 10); dst[di++] = (byte) (n >> 2); break;
+        }
+
+        return di - start;
+    }
+
+    /**
+     * Decode base64 chars into a byte buffer, advancing its position.
+     *
+     * @param src   Base64 encoded data.
+     * @param dst   Destination, must have room for {@link #decodedLength} bytes.
+     *
+     * @return Number of bytes written.
+     *
+     * @throws IllegalArgumentException when the input is not valid base64.
+     */
+    public int decode(CharSequence src, ByteBuffer dst) {
+        if (dst.hasArray()) {
+            int n = decode(src, 0, src.length(), dst.array(), dst.arrayOffset() + dst.position());
+            dst.position(dst.position() + n);
+            return n;
+        }
+
+        int start = dst.position();
+        int n = 0, count = 0;
+
+        for (int i = 0; i < src.length(); i++) {
+            char c = src.charAt(i);
+            if (c == '=') break;
+            if (c <= ' ') continue;
+
+            n = n << 6 | value(c);
+            if (++count == 4) {
+                dst.put((byte) (n >> 16)).put((byte) (n >> 8)).put((byte) n);
+                n = count = 0;
+            }
+        }
+
+        switch (count) {
+            case 1: throw new IllegalArgumentException("Truncated base64 input");
+            case 2: dst.put((byte) (n >> 4)); break;
+            case 3: dst.put((byte) (n >> 10)).put((byte) (n >> 2)); break;
+        }
+
+        return dst.position() - start;
+    }
+
+    /**
+     * Wrap a writer in a stream that base64 encodes all bytes written to it. Closing the
+     * stream writes the final partial group and closes the writer.
+     *
+     * @param out   Writer receiving the encoded chars.
+     *
+     * @return The encoding stream.
+     */
+    public OutputStream encodingStream(Writer out) {
+        return new EncodingStream(out);
+    }
+
+    /**
+     * Wrap a reader of base64 chars in a stream of the decoded bytes.
+     *
+     * @param in    Reader supplying the encoded chars.
+     *
+     * @return The decoding stream.
+     */
+    public InputStream decodingStream(Reader in) {
+        return new DecodingStream(in);
+    }
+
+    private int value(char c) {
+        int v = c < 128 ? table[c] : -1;
+        if (v < 0) throw new IllegalArgumentException("Invalid base64 character: " + c);
+        return v;
+    }
+
+    /**
+     * Encode the final 1 or 2 bytes of the input, with padding if enabled.
+     *
+     * @return Number of chars written.
+     */
+    private int tail(int b0, int b1, int len, char[] dst, int di) {
+        int start = di;
+        int n = b0 << 10 | b1 << 2;
+
+        dst[di++] = alphabet[(n >>> 12) & 0x3f];
+        dst[di++] = alphabet[(n >>> 6)  & 0x3f];
+        if (len == 2) dst[di++] = alphabet[n & 0x3f];
+
+        if (padding != 0) {
+            if (len == 1) dst[di++] = padding;
+            dst[di++] = padding;
+        }
+
+        return di - start;
+    }
+
+    private static char[] urlAlphabet() {
+        char[] alphabet = encode.clone();
+        alphabet[62] = '-';
+        alphabet[63] = '_';
+        return alphabet;
+    }
+
+    private class EncodingStream extends OutputStream {
+        private final Writer out;
+        private final byte[] pending = new byte[3];
+        private final char[] chars   = new char[1024];
+        private int count;
+
+        EncodingStream(Writer out) {
+            this.out = out;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            pending[count++] = (byte) b;
+            if (count == 3) {
+                out.write(chars, 0, encode(pending, 0, 3, chars, 0));
+                count = 0;
+            }
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            while (count != 0 && len > 0) {
+                write(b[off++]);
+                len--;
+            }
+
+            int groups = chars.length / 4 * 3;
+            while (len >= 3) {
+                int n = Math.min(len - len % 3, groups);
+                out.write(chars, 0, encode(b, off, n, chars, 0));
+                off += n;
+                len -= n;
+            }
+
+            while (len-- > 0) {
+                pending[count++] = b[off++];
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            out.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (count > 0) {
+                out.write(chars, 0, encode(pending, 0, count, chars, 0));
+                count = 0;
+            }
+            Arrays.fill(pending, (byte) 0);
+            out.close();
+        }
+    }
+
+    private class DecodingStream extends InputStream {
+        private final Reader in;
+        private final char[] chars = new char[1024];
+        private final byte[] bytes = new byte[768];
+        private int available, next;
+        private int n, count;
+        private boolean eof;
+
+        DecodingStream(Reader in) {
+            this.in = in;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (next == available && !fill()) return -1;
+            return bytes[next++] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int read = 0;
+            while (read < len) {
+                if (next == available && !fill()) break;
+                int k = Math.min(len - read, available - next);
+                System.arraycopy(bytes, next, b, off + read, k);
+                next += k;
+                read += k;
+            }
+            return read == 0 && len > 0 ? -1 : read;
+        }
+
+        @Override
+        public void close() throws IOException {
+            Arrays.fill(bytes, (byte) 0);
+            Arrays.fill(chars, (char) 0);
+            in.close();
+        }
+
+        /**
+         * Decode the next chunk of chars, carrying an incomplete group over to the next
+         * call and flushing it at the end of the input.
+         *
+         * @return false at the end of the input.
+         */
+        private boolean fill() throws IOException {
+            next = available = 0;
+
+            while (available == 0 && !eof) {
+                int len = in.read(chars, 0, chars.length);
+                if (len < 0) eof = true;
+
+                for (int i = 0; i < len && !eof; i++) {
+                    char c = chars[i];
+                    if (c == '=') eof = true;
+                    if (c <= ' ' || eof) continue;
+
+                    n = n << 6 | value(c);
+                    if (++count == 4) {
+                        bytes[available++] = (byte) (n >> 16);
+                        bytes[available++] = (byte) (n >>  8);
+                        bytes[available++] = (byte) n;
+                        n = count = 0;
+                    }
+                }
+            }
+
+            if (eof) {
+                switch (count) {
+                    case 1: throw new IOException("Truncated base64 input");
+                    case 2: bytes[available++] = (byte) (n >> 4); break;
+                    case 3: bytes[available++] = (byte) (n >> 10); bytes[available++] = (byte) (n >> 2); break;
+                }
+                n = count = 0;
+            }
+
+            return available > 0;
+        }
+    }
 }
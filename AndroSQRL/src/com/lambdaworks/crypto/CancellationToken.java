@@ -0,0 +1,49 @@
+/*
+ * Copyright 2013 Matteo Hausner
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.lambdaworks.crypto;
+
+import java.util.concurrent.CancellationException;
+
+/**
+ * A {@code CancellationToken} allows a long running key derivation to be aborted from
+ * another thread. Derivations check the token periodically and throw a
+ * {@link CancellationException} once it has been cancelled.
+ */
+public class CancellationToken {
+    private volatile boolean cancelled;
+
+    /**
+     * Request cancellation of all derivations using this token.
+     */
+    public void cancel() {
+        cancelled = true;
+    }
+
+    /**
+     * @return true if cancellation has been requested.
+     */
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    /**
+     * Throw a {@link CancellationException} if cancellation has been requested.
+     */
+    public void throwIfCancelled() {
+        if (cancelled) throw new CancellationException("Key derivation cancelled");
+    }
+}
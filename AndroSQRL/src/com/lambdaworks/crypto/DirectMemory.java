@@ -0,0 +1,101 @@
+/*
+ * Copyright 2013 Matteo Hausner
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.lambdaworks.crypto;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+
+/**
+ * Allocation and explicit release of direct (off-heap) buffers. Direct buffers are
+ * normally only freed once the garbage collector finds them unreachable, which may take
+ * arbitrarily long for large buffers with a small heap footprint. {@link #free} releases
+ * the native memory immediately on VMs that expose a way to do so (Android's
+ * {@code DirectByteBuffer.free}, the {@code cleaner} of Java 8 and
+ * {@code Unsafe.invokeCleaner} of Java 9 and later), and otherwise leaves the buffer to
+ * the garbage collector.
+ */
+class DirectMemory {
+    /**
+     * Allocate a zeroed, native-order word buffer.
+     *
+     * @param words Number of 32-bit words.
+     *
+     * @return The backing byte buffer, use {@link ByteBuffer#asIntBuffer} for word access.
+     */
+    static ByteBuffer allocate(int words) {
+        return ByteBuffer.allocateDirect(words * 4).order(ByteOrder.nativeOrder());
+    }
+
+    /**
+     * Overwrite a word buffer with zeros.
+     *
+     * @param buffer    Buffer to wipe.
+     * @param zeros     Array of zeros used as source for bulk writes.
+     */
+    static void wipe(IntBuffer buffer, int[] zeros) {
+        buffer.clear();
+        while (buffer.hasRemaining()) {
+            buffer.put(zeros, 0, Math.min(zeros.length, buffer.remaining()));
+        }
+        buffer.clear();
+    }
+
+    /**
+     * Release the native memory of a direct buffer. The buffer must not be accessed
+     * afterwards.
+     *
+     * @param buffer    Direct buffer to free.
+     *
+     * @return true if the memory was released, false if it is left to the garbage collector.
+     */
+    static boolean free(ByteBuffer buffer) {
+        if (!buffer.isDirect()) return false;
+
+        try {
+            Method free = buffer.getClass().getMethod("free");
+            free.setAccessible(true);
+            free.invoke(buffer);
+            return true;
+        } catch (Throwable e) {
+            // not Android
+        }
+
+        try {
+            Method cleaner = buffer.getClass().getMethod("cleaner");
+            cleaner.setAccessible(true);
+            Object c = cleaner.invoke(buffer);
+            c.getClass().getMethod("clean").invoke(c);
+            return true;
+        } catch (Throwable e) {
+            // not Java 8
+        }
+
+        try {
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+            theUnsafe.setAccessible(true);
+            Object unsafe = theUnsafe.get(null);
+            unsafeClass.getMethod("invokeCleaner", ByteBuffer.class).invoke(unsafe, buffer);
+            return true;
+        } catch (Throwable e) {
+            return false;
+        }
+    }
+}
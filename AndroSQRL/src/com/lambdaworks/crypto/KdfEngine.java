@@ -0,0 +1,94 @@
+/*
+ * Copyright 2013 Matteo Hausner
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.lambdaworks.crypto;
+
+import java.security.GeneralSecurityException;
+
+/**
+ * A key derivation engine that can be plugged in via {@link KdfEngines}. Engines are
+ * discovered with {@link java.util.ServiceLoader}, so additional implementations only need
+ * to be listed in {@code META-INF/services/com.lambdaworks.crypto.KdfEngine}.
+ *
+ * The parameters follow scrypt, the first supported family: {@code N} is the CPU cost,
+ * {@code r} the memory cost and {@code p} the parallelization parameter.
+ */
+public interface KdfEngine {
+    /**
+     * Get the unique name of this engine, for example {@code scrypt-native}.
+     *
+     * @return The name.
+     */
+    String name();
+
+    /**
+     * Get the name of the key derivation function this engine implements, for example
+     * {@code scrypt}. All engines of one family derive identical keys.
+     *
+     * @return The family.
+     */
+    String family();
+
+    /**
+     * Check whether this engine can be used in the current VM.
+     *
+     * @return true if the engine is available.
+     */
+    boolean isAvailable();
+
+    /**
+     * Get the number of bytes of scratch space a derivation needs.
+     *
+     * @param N         CPU cost parameter.
+     * @param r         Memory cost parameter.
+     * @param p         Parallelization parameter.
+     *
+     * @return Required memory.
+     */
+    long memory(int N, int r, int p);
+
+    /**
+     * Get the number of threads a derivation runs on.
+     *
+     * @param p         Parallelization parameter.
+     *
+     * @return Number of threads.
+     */
+    int parallelism(int p);
+
+    /**
+     * Check whether several threads may derive keys with this engine at the same time.
+     *
+     * @return true if the engine is thread-safe.
+     */
+    boolean isThreadSafe();
+
+    /**
+     * Derive a key.
+     *
+     * @param passwd    Password.
+     * @param salt      Salt.
+     * @param N         CPU cost parameter.
+     * @param r         Memory cost parameter.
+     * @param p         Parallelization parameter.
+     * @param dkLen     Intended length of the derived key.
+     *
+     * @return The derived key.
+     *
+     * @throws GeneralSecurityException when HMAC_SHA256 is not available.
+     */
+    byte[] derive(byte[] passwd, byte[] salt, int N, int r, int p, int dkLen) throws GeneralSecurityException;
+}
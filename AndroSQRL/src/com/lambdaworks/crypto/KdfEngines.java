@@ -0,0 +1,113 @@
+/*
+ * Copyright 2013 Matteo Hausner
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.lambdaworks.crypto;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.ServiceConfigurationError;
+import java.util.ServiceLoader;
+
+/**
+ * {@code KdfEngines} discovers the available {@link KdfEngine} implementations via
+ * {@link ServiceLoader} and holds the engine used when callers do not pass one explicitly.
+ *
+ * The system property {@code com.lambdaworks.crypto.kdf} may be used to name the default
+ * engine, otherwise it is {@code scrypt}, which follows {@link SCryptBackends}.
+ */
+public class KdfEngines {
+    private static List<KdfEngine> engines;
+    private static KdfEngine engine;
+
+    /**
+     * Get all discovered engines, in discovery order. The built-in scrypt engines are
+     * always included, even if the service configuration was stripped from the package.
+     *
+     * @return Unmodifiable list of engines.
+     */
+    public static synchronized List<KdfEngine> engines() {
+        if (engines == null) {
+            List<KdfEngine> list = new ArrayList<KdfEngine>();
+
+            Iterator<KdfEngine> it = ServiceLoader.load(KdfEngine.class, KdfEngine.class.getClassLoader()).iterator();
+            while (true) {
+                try {
+                    if (!it.hasNext()) break;
+                    list.add(it.next());
+                } catch (ServiceConfigurationError e) {
+                    // skip providers that cannot be instantiated
+                }
+            }
+
+            if (find(list, SCryptEngine.FAMILY) == null) {
+                list.add(new SCryptEngine());
+                for (SCryptBackend backend : SCryptBackend.values()) {
+                    list.add(new SCryptEngine(backend));
+                }
+            }
+
+            engines = Collections.unmodifiableList(list);
+        }
+        return engines;
+    }
+
+    /**
+     * Get a discovered engine by name.
+     *
+     * @param name  Engine name.
+     *
+     * @return The engine.
+     *
+     * @throws IllegalArgumentException if no engine has that name.
+     */
+    public static KdfEngine engine(String name) {
+        KdfEngine engine = find(engines(), name);
+        if (engine == null) throw new IllegalArgumentException("Unknown KDF engine: " + name);
+        return engine;
+    }
+
+    /**
+     * Get the default engine.
+     *
+     * @return The engine.
+     */
+    public static synchronized KdfEngine engine() {
+        if (engine == null) {
+            String name = System.getProperty("com.lambdaworks.crypto.kdf");
+            engine = engine(name != null ? name : SCryptEngine.FAMILY);
+        }
+        return engine;
+    }
+
+    /**
+     * Replace the default engine.
+     *
+     * @param engine    Engine used by callers that do not pass one.
+     */
+    public static synchronized void setEngine(KdfEngine engine) {
+        if (engine == null) throw new NullPointerException("engine");
+        KdfEngines.engine = engine;
+    }
+
+    private static KdfEngine find(List<KdfEngine> engines, String name) {
+        for (KdfEngine engine : engines) {
+            if (engine.name().equals(name)) return engine;
+        }
+        return null;
+    }
+}
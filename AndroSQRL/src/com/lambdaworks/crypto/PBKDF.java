@@ -5,6 +5,13 @@ package com.lambdaworks.crypto;
 import javax.crypto.Mac;
 import javax.crypto.spec.SecretKeySpec;
 import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
 import static java.lang.System.arraycopy;
 
 /**
@@ -14,6 +21,12 @@ import static java.lang.System.arraycopy;
  * @author  Will Glozer
  */
 public class PBKDF {
+    /**
+     * Minimum number of output blocks each worker of a parallel derivation computes. Shorter
+     * keys are derived serially.
+     */
+    public static final int PARALLEL_THRESHOLD = 64;
+
     /**
      * Implementation of PBKDF2 (RFC2898).
      *
@@ -53,16 +66,76 @@ public class PBKDF {
             throw new GeneralSecurityException("Requested key length too long");
         }
 
+        blocks(mac, S, c, DK, dkLen, 1, (dkLen + hLen - 1) / hLen);
+    }
+
+    /**
+     * Implementation of PBKDF2 (RFC2898) that computes the output blocks on several threads,
+     * each with its own clone of the {@link Mac}. Keys shorter than two times
+     * {@value #PARALLEL_THRESHOLD} blocks, and macs that cannot be cloned, are derived serially.
+     * The derived key is identical to the serial one.
+     *
+     * @param   mac         Pre-initialized {@link Mac} instance to use.
+     * @param   S           Salt.
+     * @param   c           Iteration count.
+     * @param   DK          Byte array that derived key will be placed in.
+     * @param   dkLen       Intended length, in octets, of the derived key.
+     * @param   executor    Executor running the workers, may be null to derive serially.
+     * @param   threads     Maximum number of threads, including the calling one.
+     *
+     * @throws  GeneralSecurityException
+     */
+    public static void pbkdf2(Mac mac, final byte[] S, final int c, final byte[] DK, final int dkLen,
+                              ExecutorService executor, int threads) throws GeneralSecurityException {
+        int hLen = mac.getMacLength();
+
+        if (dkLen > (Math.pow(2, 32) - 1) * hLen) {
+            throw new GeneralSecurityException("Requested key length too long");
+        }
+
+        int l = (dkLen + hLen - 1) / hLen;
+        int workers = executor == null ? 1 : Math.min(threads, l / PARALLEL_THRESHOLD);
+
+        List<Callable<Void>> tasks = new ArrayList<Callable<Void>>(Math.max(workers, 1));
+        try {
+            for (int w = 0; w < workers; w++) {
+                final Mac clone = w == 0 ? mac : (Mac) mac.clone();
+                final int from = 1 + (int) ((long) l * w / workers);
+                final int to   = (int) ((long) l * (w + 1) / workers);
+                tasks.add(new Callable<Void>() {
+                    public Void call() throws GeneralSecurityException {
+                        blocks(clone, S, c, DK, dkLen, from, to);
+                        return null;
+                    }
+                });
+            }
+        } catch (CloneNotSupportedException e) {
+            workers = 1;
+        }
+
+        if (workers <= 1) {
+            blocks(mac, S, c, DK, dkLen, 1, l);
+        } else {
+            invoke(executor, tasks);
+        }
+    }
+
+    /**
+     * Compute the output blocks {@code from} to {@code to}, inclusive and starting at 1.
+     */
+    private static void blocks(Mac mac, byte[] S, int c, byte[] DK, int dkLen, int from, int to) throws GeneralSecurityException {
+        int hLen = mac.getMacLength();
+
         byte[] U      = new byte[hLen];
         byte[] T      = new byte[hLen];
         byte[] block1 = new byte[S.length + 4];
 
-        int l = (int) Math.ceil((double) dkLen / hLen);
+        int l = (dkLen + hLen - 1) / hLen;
         int r = dkLen - (l - 1) * hLen;
 
         arraycopy(S, 0, block1, 0, S.length);
 
-        for (int i = 1; i <= l; i++) {
+        for (int i = from; i <= to; i++) {
             block1[S.length + 0] = (byte) (i >> 24 & 0xff);
             block1[S.length + 1] = (byte) (i >> 16 & 0xff);
             block1[S.length + 2] = (byte) (i >> 8  & 0xff);
@@ -84,4 +157,49 @@ public class PBKDF {
             arraycopy(T, 0, DK, (i - 1) * hLen, (i == l ? r : hLen));
         }
     }
+
+    /**
+     * Run the first task on the calling thread and the others on the executor, and wait
+     * until all of them have finished.
+     *
+     * @param   executor    Executor running all but the first task.
+     * @param   tasks       Tasks to run.
+     *
+     * @throws  GeneralSecurityException when a task failed with one.
+     */
+    static void invoke(ExecutorService executor, List<Callable<Void>> tasks) throws GeneralSecurityException {
+        List<Future<Void>> futures = new ArrayList<Future<Void>>(tasks.size());
+        Throwable failure = null;
+        boolean interrupted = false;
+
+        try {
+            for (int i = 1; i < tasks.size(); i++) {
+                futures.add(executor.submit(tasks.get(i)));
+            }
+            tasks.get(0).call();
+        } catch (Throwable e) {
+            failure = e;
+        }
+
+        // The tasks write into the caller's buffers, so all of them have to finish
+        for (Future<Void> future : futures) {
+            while (true) {
+                try {
+                    future.get();
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                } catch (ExecutionException e) {
+                    if (failure == null) failure = e.getCause();
+                    break;
+                }
+            }
+        }
+        if (interrupted) Thread.currentThread().interrupt();
+
+        if (failure instanceof GeneralSecurityException) throw (GeneralSecurityException) failure;
+        if (failure instanceof RuntimeException) throw (RuntimeException) failure;
+        if (failure instanceof Error) throw (Error) failure;
+        if (failure != null) throw new IllegalStateException(failure);
+    }
 }
@@ -0,0 +1,330 @@
+/*
+ * Copyright 2013 Matteo Hausner
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.lambdaworks.crypto;
+
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+
+import static java.lang.System.arraycopy;
+
+/**
+ * A dedicated implementation of PBKDF2 (RFC 2898) with HMAC-SHA256 as pseudo random function.
+ * The SHA-256 states after the inner and outer HMAC pads are computed once per password, the
+ * full 64-byte blocks of the salt are hashed once per derivation and their midstate is reused
+ * for every block index. The serial derivations do not allocate.
+ *
+ * The derived keys are identical to those of {@link PBKDF#pbkdf2} with {@code HmacSHA256}.
+ * An instance is not thread-safe.
+ */
+public class PBKDF2HmacSHA256 {
+    private static final int[] K = {
+        0x428a2f98, 0x71374491, 0xb5c0fbcf, 0xe9b5dba5, 0x3956c25b, 0x59f111f1, 0x923f82a4, 0xab1c5ed5,
+        0xd807aa98, 0x12835b01, 0x243185be, 0x550c7dc3, 0x72be5d74, 0x80deb1fe, 0x9bdc06a7, 0xc19bf174,
+        0xe49b69c1, 0xefbe4786, 0x0fc19dc6, 0x240ca1cc, 0x2de92c6f, 0x4a7484aa, 0x5cb0a9dc, 0x76f988da,
+        0x983e5152, 0xa831c66d, 0xb00327c8, 0xbf597fc7, 0xc6e00bf3, 0xd5a79147, 0x06ca6351, 0x14292967,
+        0x27b70a85, 0x2e1b2138, 0x4d2c6dfc, 0x53380d13, 0x650a7354, 0x766a0abb, 0x81c2c92e, 0x92722c85,
+        0xa2bfe8a1, 0xa81a664b, 0xc24b8b70, 0xc76c51a3, 0xd192e819, 0xd6990624, 0xf40e3585, 0x106aa070,
+        0x19a4c116, 0x1e376c08, 0x2748774c, 0x34b0bcb5, 0x391c0cb3, 0x4ed8aa4a, 0x5b9cca4f, 0x682e6ff3,
+        0x748f82ee, 0x78a5636f, 0x84c87814, 0x8cc70208, 0x90befffa, 0xa4506ceb, 0xbef9a3f7, 0xc67178f2
+    };
+
+    private static final int[] IV = {
+        0x6a09e667, 0xbb67ae85, 0x3c6ef372, 0xa54ff53a, 0x510e527f, 0x9b05688c, 0x1f83d9ab, 0x5be0cd19
+    };
+
+    private final int[] ipad  = new int[8];
+    private final int[] opad  = new int[8];
+    private final int[] salt  = new int[8];
+    private final int[] state = new int[8];
+    private final int[] U     = new int[8];
+    private final int[] T     = new int[8];
+    private final int[] W     = new int[64];
+    private final byte[] tail = new byte[128];
+
+    /**
+     * Create a new instance for the supplied password.
+     *
+     * @param P     Password, used as HMAC key.
+     */
+    public PBKDF2HmacSHA256(byte[] P) {
+        byte[] key = new byte[64];
+
+        if (P.length > 64) {
+            arraycopy(IV, 0, state, 0, 8);
+            int n = update(state, P, 0, P.length);
+            finish(state, P, n, P.length - n, P.length);
+            for (int i = 0; i < 8; i++) {
+                encode(state[i], key, i * 4);
+            }
+        } else {
+            arraycopy(P, 0, key, 0, P.length);
+        }
+
+        for (int i = 0; i < 64; i++) key[i] ^= 0x36;
+        arraycopy(IV, 0, ipad, 0, 8);
+        compress(ipad, key, 0);
+
+        for (int i = 0; i < 64; i++) key[i] ^= 0x36 ^ 0x5c;
+        arraycopy(IV, 0, opad, 0, 8);
+        compress(opad, key, 0);
+
+        Arrays.fill(key, (byte) 0);
+        Arrays.fill(state, 0);
+        Arrays.fill(W, 0);
+    }
+
+    private PBKDF2HmacSHA256(PBKDF2HmacSHA256 kdf) {
+        arraycopy(kdf.ipad, 0, ipad, 0, 8);
+        arraycopy(kdf.opad, 0, opad, 0, 8);
+    }
+
+    /**
+     * Implementation of PBKDF2 (RFC2898).
+     *
+     * @param   S       Salt.
+     * @param   c       Iteration count.
+     * @param   DK      Byte array that derived key will be placed in.
+     * @param   dkLen   Intended length, in octets, of the derived key.
+     *
+     * @throws  GeneralSecurityException when the requested key is too long.
+     */
+    public void pbkdf2(byte[] S, int c, byte[] DK, int dkLen) throws GeneralSecurityException {
+        pbkdf2(S, 0, S.length, c, DK, 0, dkLen);
+    }
+
+    /**
+     * Implementation of PBKDF2 (RFC2898) on array slices.
+     *
+     * @param   S       Array containing the salt.
+     * @param   Si      Offset of the salt.
+     * @param   Slen    Length of the salt.
+     * @param   c       Iteration count.
+     * @param   DK      Byte array that derived key will be placed in.
+     * @param   DKi     Offset of the derived key.
+     * @param   dkLen   Intended length, in octets, of the derived key.
+     *
+     * @throws  GeneralSecurityException when the requested key is too long.
+     */
+    public void pbkdf2(byte[] S, int Si, int Slen, int c, byte[] DK, int DKi, int dkLen) throws GeneralSecurityException {
+        if (dkLen > (Math.pow(2, 32) - 1) * 32) {
+            throw new GeneralSecurityException("Requested key length too long");
+        }
+
+        blocks(S, Si, Slen, c, DK, DKi, dkLen, 1, (dkLen + 31) / 32);
+    }
+
+    /**
+     * Implementation of PBKDF2 (RFC2898) that computes the output blocks on several threads,
+     * each with its own copy of the pad states. Keys shorter than two times
+     * {@value PBKDF#PARALLEL_THRESHOLD} blocks are derived serially. The derived key is
+     * identical to the serial one.
+     *
+     * @param   S           Salt.
+     * @param   c           Iteration count.
+     * @param   DK          Byte array that derived key will be placed in.
+     * @param   dkLen       Intended length, in octets, of the derived key.
+     * @param   executor    Executor running the workers, may be null to derive serially.
+     * @param   threads     Maximum number of threads, including the calling one.
+     *
+     * @throws  GeneralSecurityException when the requested key is too long.
+     */
+    public void pbkdf2(final byte[] S, final int c, final byte[] DK, final int dkLen,
+                       ExecutorService executor, int threads) throws GeneralSecurityException {
+        if (dkLen > (Math.pow(2, 32) - 1) * 32) {
+            throw new GeneralSecurityException("Requested key length too long");
+        }
+
+        int l = (dkLen + 31) / 32;
+        int workers = executor == null ? 1 : Math.min(threads, l / PBKDF.PARALLEL_THRESHOLD);
+
+        if (workers <= 1) {
+            blocks(S, 0, S.length, c, DK, 0, dkLen, 1, l);
+            return;
+        }
+
+        List<Callable<Void>> tasks = new ArrayList<Callable<Void>>(workers);
+        for (int w = 0; w < workers; w++) {
+            final PBKDF2HmacSHA256 kdf = w == 0 ? this : new PBKDF2HmacSHA256(this);
+            final int from = 1 + (int) ((long) l * w / workers);
+            final int to   = (int) ((long) l * (w + 1) / workers);
+            tasks.add(new Callable<Void>() {
+                public Void call() {
+                    try {
+                        kdf.blocks(S, 0, S.length, c, DK, 0, dkLen, from, to);
+                    } finally {
+                        if (kdf != PBKDF2HmacSHA256.this) kdf.wipe();
+                    }
+                    return null;
+                }
+            });
+        }
+        PBKDF.invoke(executor, tasks);
+    }
+
+    /**
+     * Compute the output blocks {@code from} to {@code to}, inclusive and starting at 1.
+     */
+    private void blocks(byte[] S, int Si, int Slen, int c, byte[] DK, int DKi, int dkLen, int from, int to) {
+        // Hash the full salt blocks once and keep the remainder plus padding for every block index
+        arraycopy(ipad, 0, salt, 0, 8);
+        int full = update(salt, S, Si, Slen);
+        int rem  = Slen - full;
+        long bits = (64L + Slen + 4) * 8;
+
+        Arrays.fill(tail, (byte) 0);
+        arraycopy(S, Si + full, tail, 0, rem);
+        tail[rem + 4] = (byte) 0x80;
+        int tailLen = rem + 4 + 9 <= 64 ? 64 : 128;
+        for (int k = 0; k < 8; k++) {
+            tail[tailLen - 1 - k] = (byte) (bits >>> (8 * k));
+        }
+
+        for (int i = from; i <= to; i++) {
+            encode(i, tail, rem);
+
+            arraycopy(salt, 0, state, 0, 8);
+            compress(state, tail, 0);
+            if (tailLen == 128) compress(state, tail, 64);
+            outer(state, U);
+            arraycopy(U, 0, T, 0, 8);
+
+            for (int j = 1; j < c; j++) {
+                arraycopy(ipad, 0, state, 0, 8);
+                digest(state, U);
+                outer(state, U);
+
+                for (int k = 0; k < 8; k++) {
+                    T[k] ^= U[k];
+                }
+            }
+
+            int off = (i - 1) * 32;
+            int len = Math.min(32, dkLen - off);
+            for (int k = 0; k < len; k++) {
+                DK[DKi + off + k] = (byte) (T[k >>> 2] >>> (24 - 8 * (k & 3)));
+            }
+        }
+
+        Arrays.fill(salt, 0);
+        Arrays.fill(state, 0);
+        Arrays.fill(U, 0);
+        Arrays.fill(T, 0);
+        Arrays.fill(W, 0);
+        Arrays.fill(tail, (byte) 0);
+    }
+
+    /**
+     * Overwrite the cached pad states with zeros. The instance must not be used afterwards.
+     */
+    public void wipe() {
+        Arrays.fill(ipad, 0);
+        Arrays.fill(opad, 0);
+    }
+
+    /**
+     * Finish an HMAC whose inner hash has been computed into {@code inner}.
+     */
+    private void outer(int[] inner, int[] out) {
+        arraycopy(opad, 0, out, 0, 8);
+        digest(out, inner);
+    }
+
+    /**
+     * Hash a 32-byte message, given as words, that follows one already hashed 64-byte block.
+     */
+    private void digest(int[] H, int[] M) {
+        arraycopy(M, 0, W, 0, 8);
+        W[8] = 0x80000000;
+        for (int k = 9; k < 15; k++) W[k] = 0;
+        W[15] = (64 + 32) * 8;
+        compress(H, W);
+    }
+
+    /**
+     * Hash all full 64-byte blocks of a message.
+     *
+     * @return Number of bytes hashed.
+     */
+    private int update(int[] H, byte[] M, int Mi, int len) {
+        int n = 0;
+        for (; n + 64 <= len; n += 64) {
+            compress(H, M, Mi + n);
+        }
+        return n;
+    }
+
+    /**
+     * Hash the final partial block of a message, including padding.
+     */
+    private void finish(int[] H, byte[] M, int Mi, int len, long total) {
+        arraycopy(M, Mi, tail, 0, len);
+        Arrays.fill(tail, len, 128, (byte) 0);
+        tail[len] = (byte) 0x80;
+        int end = len + 9 <= 64 ? 64 : 128;
+        for (int k = 0; k < 8; k++) {
+            tail[end - 1 - k] = (byte) ((total * 8) >>> (8 * k));
+        }
+        compress(H, tail, 0);
+        if (end == 128) compress(H, tail, 64);
+        Arrays.fill(tail, (byte) 0);
+    }
+
+    private void compress(int[] H, byte[] M, int Mi) {
+        for (int k = 0; k < 16; k++) {
+            int i = Mi + k * 4;
+            W[k] = (M[i] & 0xff) << 24 | (M[i + 1] & 0xff) << 16 | (M[i + 2] & 0xff) << 8 | (M[i + 3] & 0xff);
+        }
+        compress(H, W);
+    }
+
+    private static void compress(int[] H, int[] W) {
+        int k;
+
+        for (k = 16; k < 64; k++) {
+            int w15 = W[k - 15], w2 = W[k - 2];
+            int s0 = Integer.rotateRight(w15, 7) ^ Integer.rotateRight(w15, 18) ^ (w15 >>> 3);
+            int s1 = Integer.rotateRight(w2, 17) ^ Integer.rotateRight(w2, 19) ^ (w2 >>> 10);
+            W[k] = W[k - 16] + s0 + W[k - 7] + s1;
+        }
+
+        int a = H[0], b = H[1], c = H[2], d = H[3];
+        int e = H[4], f = H[5], g = H[6], h = H[7];
+
+        for (k = 0; k < 64; k++) {
+            int S1 = Integer.rotateRight(e, 6) ^ Integer.rotateRight(e, 11) ^ Integer.rotateRight(e, 25);
+            int t1 = h + S1 + ((e & f) ^ (~e & g)) + K[k] + W[k];
+            int S0 = Integer.rotateRight(a, 2) ^ Integer.rotateRight(a, 13) ^ Integer.rotateRight(a, 22);
+            int t2 = S0 + ((a & b) ^ (a & c) ^ (b & c));
+            h = g; g = f; f = e; e = d + t1;
+            d = c; c = b; b = a; a = t1 + t2;
+        }
+
+        H[0] += a; H[1] += b; H[2] += c; H[3] += d;
+        H[4] += e; H[5] += f; H[6] += g; H[7] += h;
+    }
+
+    private static void encode(int v, byte[] dst, int di) {
+        dst[di    ] = (byte) (v >>> 24);
+        dst[di + 1] = (byte) (v >>> 16);
+        dst[di + 2] = (byte) (v >>> 8);
+        dst[di + 3] = (byte) v;
+    }
+}
@@ -0,0 +1,66 @@
+/*
+ * Copyright 2013 Matteo Hausner
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.lambdaworks.crypto;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Progress accounting of a single derivation, shared by all of its workers. Workers
+ * report completed smix iterations via {@link #advance}, which notifies the listener and
+ * aborts the worker when the derivation was cancelled or has failed elsewhere.
+ */
+class Progress {
+    /**
+     * Number of smix iterations between two progress reports and cancellation checks.
+     */
+    static final int INTERVAL = 4096;
+
+    private final ProgressListener listener;
+    private final CancellationToken token;
+    private final long total;
+    private final AtomicLong completed = new AtomicLong();
+    private volatile boolean aborted;
+
+    Progress(ProgressListener listener, CancellationToken token, long total) {
+        this.listener = listener;
+        this.token    = token;
+        this.total    = total;
+    }
+
+    /**
+     * Record completed work and check for cancellation.
+     *
+     * @param units Number of completed smix iterations.
+     *
+     * @throws CancellationException if the derivation has been cancelled or aborted.
+     */
+    void advance(int units) {
+        if (aborted) throw new CancellationException("Key derivation aborted");
+        if (token != null) token.throwIfCancelled();
+
+        long done = completed.addAndGet(units);
+        if (listener != null) listener.progress(done, total);
+    }
+
+    /**
+     * Make all workers stop at their next call to {@link #advance}.
+     */
+    void abort() {
+        aborted = true;
+    }
+}
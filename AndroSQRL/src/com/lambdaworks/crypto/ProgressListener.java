@@ -0,0 +1,32 @@
+/*
+ * Copyright 2013 Matteo Hausner
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.lambdaworks.crypto;
+
+/**
+ * A {@code ProgressListener} is notified about the progress of a long running key
+ * derivation. It may be invoked from any thread, including worker threads of a parallel
+ * derivation, and must return quickly.
+ */
+public interface ProgressListener {
+    /**
+     * Report progress of a derivation.
+     *
+     * @param completed Number of completed work units.
+     * @param total     Total number of work units.
+     */
+    void progress(long completed, long total);
+}
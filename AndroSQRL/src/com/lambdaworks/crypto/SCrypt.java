@@ -6,32 +6,67 @@ import com.lambdaworks.jni.*;
 
 import javax.crypto.Mac;
 import javax.crypto.spec.SecretKeySpec;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
 import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static java.lang.Integer.MAX_VALUE;
 import static java.lang.System.arraycopy;
 
 /**
  * An implementation of the <a href="http://www.tarsnap.com/scrypt/scrypt.pdf"/>scrypt</a>
- * key derivation function. This class will attempt to load a native library
- * containing the optimized C implementation from
+ * key derivation function. This class can load a native library containing the optimized
+ * C implementation from
  * <a href="http://www.tarsnap.com/scrypt.html">http://www.tarsnap.com/scrypt.html<a> and
- * fall back to the pure Java version if that fails.
+ * otherwise uses one of the pure Java versions, as chosen by {@link SCryptBackends}.
  *
  * @author  Will Glozer
  */
 public class SCrypt {
-    private static final boolean native_library_loaded;
+    private static boolean native_library_attempted;
+    private static volatile boolean native_library_loaded;
 
-    static {
-        LibraryLoader loader = LibraryLoaders.loader();
-        native_library_loaded = loader.load("scrypt", true);
+    private static ExecutorService executor;
+
+    /**
+     * Load the native library unless that has already been attempted. This must succeed
+     * before {@link #scryptN} may be called.
+     *
+     * @return true if the native library is loaded.
+     */
+    public static synchronized boolean loadNativeLibrary() {
+        if (!native_library_attempted) {
+            LibraryLoader loader = LibraryLoaders.loader();
+            native_library_loaded = loader.load("scrypt", true);
+            native_library_attempted = true;
+        }
+        return native_library_loaded;
+    }
+
+    /**
+     * Check whether the native library has been loaded, without attempting to load it.
+     *
+     * @return true if {@link #scryptN} may be called.
+     */
+    static boolean isNativeLibraryLoaded() {
+        return native_library_loaded;
     }
 
     /**
      * Implementation of the <a href="http://www.tarsnap.com/scrypt/scrypt.pdf"/>scrypt KDF</a>.
-     * Calls the native implementation {@link #scryptN} when the native library was successfully
-     * loaded, otherwise calls {@link #scryptJ}.
+     * Calls the backend selected by {@link SCryptBackends}. While no backend has been
+     * selected yet it calls {@link #scryptN} if the native library is already loaded and
+     * {@link #scryptJ} otherwise.
      *
      * @param passwd    Password.
      * @param salt      Salt.
@@ -45,12 +80,49 @@ public class SCrypt {
      * @throws GeneralSecurityException when HMAC_SHA256 is not available.
      */
     public static byte[] scrypt(byte[] passwd, byte[] salt, int N, int r, int p, int dkLen) throws GeneralSecurityException {
-        return native_library_loaded ? scryptN(passwd, salt, N, r, p, dkLen) : scryptJ(passwd, salt, N, r, p, dkLen);
+        return SCryptBackends.backend().scrypt(passwd, salt, N, r, p, dkLen);
+    }
+
+    /**
+     * Implementation of the <a href="http://www.tarsnap.com/scrypt/scrypt.pdf"/>scrypt KDF</a>
+     * that reports its progress and can be cancelled. Uses the pure Java implementation
+     * {@link #scryptP}, since a native derivation can be neither observed nor interrupted,
+     * unless neither a listener nor a token is supplied.
+     * Progress is measured in smix iterations, {@code 2 * N * p} in total, and both the listener
+     * and the token are consulted every {@value Progress#INTERVAL} iterations.
+     *
+     * @param passwd    Password.
+     * @param salt      Salt.
+     * @param N         CPU cost parameter.
+     * @param r         Memory cost parameter.
+     * @param p         Parallelization parameter.
+     * @param dkLen     Intended length of the derived key.
+     * @param listener  Listener notified about the progress, may be null.
+     * @param token     Token used to cancel the derivation, may be null.
+     *
+     * @return The derived key.
+     *
+     * @throws GeneralSecurityException when HMAC_SHA256 is not available.
+     * @throws java.util.concurrent.CancellationException when the derivation was cancelled.
+     */
+    public static byte[] scrypt(byte[] passwd, byte[] salt, int N, int r, int p, int dkLen,
+                                ProgressListener listener, CancellationToken token) throws GeneralSecurityException {
+        if (listener == null && token == null) return scrypt(passwd, salt, N, r, p, dkLen);
+
+        Runtime runtime = Runtime.getRuntime();
+        SCryptContext context = SCryptContext.acquire(N, r, p);
+        try {
+            return scryptP(passwd, salt, dkLen, context, executor(), runtime.availableProcessors(), runtime.maxMemory() / 4,
+                           listener, token);
+        } finally {
+            SCryptContext.release(context);
+        }
     }
 
     /**
      * Native C implementation of the <a href="http://www.tarsnap.com/scrypt/scrypt.pdf"/>scrypt KDF</a> using
      * the code from <a href="http://www.tarsnap.com/scrypt.html">http://www.tarsnap.com/scrypt.html<a>.
+     * Requires a successful {@link #loadNativeLibrary}.
      *
      * @param passwd    Password.
      * @param salt      Salt.
@@ -104,6 +176,491 @@ public class SCrypt {
         return DK;
     }
 
+    /**
+     * Pure Java implementation of the <a href="http://www.tarsnap.com/scrypt/scrypt.pdf"/>scrypt KDF</a>
+     * that keeps {@code B}, {@code XY} and {@code V} as little-endian 32-bit words. Bytes are only
+     * converted at the PBKDF2 boundaries and the smix loop does not allocate. The derived key is
+     * identical to the one returned by {@link #scryptJ}.
+     *
+     * @param passwd    Password.
+     * @param salt      Salt.
+     * @param N         CPU cost parameter.
+     * @param r         Memory cost parameter.
+     * @param p         Parallelization parameter.
+     * @param dkLen     Intended length of the derived key.
+     *
+     * @return The derived key.
+     *
+     * @throws GeneralSecurityException when HMAC_SHA256 is not available.
+     */
+    public static byte[] scryptI(byte[] passwd, byte[] salt, int N, int r, int p, int dkLen) throws GeneralSecurityException {
+        if (N < 2 || (N & (N - 1)) != 0) throw new IllegalArgumentException("N must be a power of 2 greater than 1");
+
+        if (N > MAX_VALUE / 128 / r) throw new IllegalArgumentException("Parameter N is too large");
+        if (r > MAX_VALUE / 128 / p) throw new IllegalArgumentException("Parameter r is too large");
+
+        PBKDF2HmacSHA256 kdf = new PBKDF2HmacSHA256(passwd);
+
+        byte[] DK = new byte[dkLen];
+
+        byte[] B   = new byte[128 * r * p];
+        int[]  B32 = new int[32 * r * p];
+        int[]  XY  = new int[64 * r];
+        int[]  V   = new int[32 * r * N];
+        int[]  X   = new int[16];
+        int i;
+
+        kdf.pbkdf2(salt, 1, B, p * 128 * r);
+        le32dec(B, 0, B32, 0, B32.length);
+
+        for (i = 0; i < p; i++) {
+            smix(B32, i * 32 * r, r, N, V, XY, X);
+        }
+
+        le32enc(B32, 0, B, 0, B32.length);
+        kdf.pbkdf2(B, 1, DK, dkLen);
+
+        return DK;
+    }
+
+    /**
+     * Pure Java implementation of the <a href="http://www.tarsnap.com/scrypt/scrypt.pdf"/>scrypt KDF</a>
+     * that trades CPU for memory. Only every {@code k}-th block of {@code V} is stored and the
+     * missing blocks are recomputed from the nearest stored one when they are read, so {@code V}
+     * needs {@code 128 * r * ceil(N / k)} bytes instead of {@code 128 * r * N} and the second
+     * half of smix costs about {@code (k + 1) / 2} times as much on average. The derived key is
+     * identical to the one returned by {@link #scryptJ}.
+     *
+     * @param passwd    Password.
+     * @param salt      Salt.
+     * @param N         CPU cost parameter.
+     * @param r         Memory cost parameter.
+     * @param p         Parallelization parameter.
+     * @param dkLen     Intended length of the derived key.
+     * @param k         Time-memory tradeoff factor, 1 stores all of {@code V}.
+     *
+     * @return The derived key.
+     *
+     * @throws GeneralSecurityException when HMAC_SHA256 is not available.
+     */
+    public static byte[] scryptT(byte[] passwd, byte[] salt, int N, int r, int p, int dkLen, int k) throws GeneralSecurityException {
+        return scryptT(passwd, salt, N, r, p, dkLen, k, null, null);
+    }
+
+    /**
+     * Variant of {@link #scryptT(byte[], byte[], int, int, int, int, int)} that reports its
+     * progress and can be cancelled like {@link #scrypt(byte[], byte[], int, int, int, int,
+     * ProgressListener, CancellationToken)}. Progress is measured in smix iterations,
+     * {@code 2 * N * p} in total, so the recomputing second half of smix advances more slowly.
+     *
+     * @param passwd    Password.
+     * @param salt      Salt.
+     * @param N         CPU cost parameter.
+     * @param r         Memory cost parameter.
+     * @param p         Parallelization parameter.
+     * @param dkLen     Intended length of the derived key.
+     * @param k         Time-memory tradeoff factor, 1 stores all of {@code V}.
+     * @param listener  Listener notified about the progress, may be null.
+     * @param token     Token used to cancel the derivation, may be null.
+     *
+     * @return The derived key.
+     *
+     * @throws GeneralSecurityException when HMAC_SHA256 is not available.
+     * @throws java.util.concurrent.CancellationException when the derivation was cancelled.
+     */
+    public static byte[] scryptT(byte[] passwd, byte[] salt, int N, int r, int p, int dkLen, int k,
+                                 ProgressListener listener, CancellationToken token) throws GeneralSecurityException {
+        if (N < 2 || (N & (N - 1)) != 0) throw new IllegalArgumentException("N must be a power of 2 greater than 1");
+        if (k < 1 || k > N) throw new IllegalArgumentException("k must be between 1 and N");
+
+        if (N > MAX_VALUE / 128 / r) throw new IllegalArgumentException("Parameter N is too large");
+        if (r > MAX_VALUE / 128 / p) throw new IllegalArgumentException("Parameter r is too large");
+
+        PBKDF2HmacSHA256 kdf = new PBKDF2HmacSHA256(passwd);
+
+        byte[] DK = new byte[dkLen];
+
+        byte[] B   = new byte[128 * r * p];
+        int[]  B32 = new int[32 * r * p];
+        int[]  XY  = new int[64 * r];
+        int[]  T   = new int[64 * r];
+        int[]  V   = new int[32 * r * ((N + k - 1) / k)];
+        int[]  X   = new int[16];
+        int i;
+
+        Progress progress = listener == null && token == null ? null : new Progress(listener, token, 2L * N * p);
+
+        try {
+            if (token != null) token.throwIfCancelled();
+
+            kdf.pbkdf2(salt, 1, B, p * 128 * r);
+            le32dec(B, 0, B32, 0, B32.length);
+
+            for (i = 0; i < p; i++) {
+                smix(B32, i * 32 * r, r, N, k, V, XY, X, T, progress);
+            }
+
+            le32enc(B32, 0, B, 0, B32.length);
+            kdf.pbkdf2(B, 1, DK, dkLen);
+        } finally {
+            kdf.wipe();
+            Arrays.fill(B, (byte) 0);
+            Arrays.fill(B32, 0);
+            Arrays.fill(XY, 0);
+            Arrays.fill(T, 0);
+            Arrays.fill(V, 0);
+            Arrays.fill(X, 0);
+        }
+
+        return DK;
+    }
+
+    /**
+     * Pure Java implementation of the <a href="http://www.tarsnap.com/scrypt/scrypt.pdf"/>scrypt KDF</a>
+     * that advances two lanes in lockstep within one thread. The salsa20/8 rounds of both lanes
+     * are interleaved so that their independent dependency chains can overlap in the pipeline.
+     * This needs {@code V} for two lanes at once. An odd last lane runs through the single lane
+     * kernel. The derived key is identical to the one returned by {@link #scryptJ}.
+     *
+     * @param passwd    Password.
+     * @param salt      Salt.
+     * @param N         CPU cost parameter.
+     * @param r         Memory cost parameter.
+     * @param p         Parallelization parameter.
+     * @param dkLen     Intended length of the derived key.
+     *
+     * @return The derived key.
+     *
+     * @throws GeneralSecurityException when HMAC_SHA256 is not available.
+     */
+    public static byte[] scryptL(byte[] passwd, byte[] salt, int N, int r, int p, int dkLen) throws GeneralSecurityException {
+        if (N < 2 || (N & (N - 1)) != 0) throw new IllegalArgumentException("N must be a power of 2 greater than 1");
+
+        if (N > MAX_VALUE / 128 / r / 2) throw new IllegalArgumentException("Parameter N is too large");
+        if (r > MAX_VALUE / 128 / p) throw new IllegalArgumentException("Parameter r is too large");
+
+        PBKDF2HmacSHA256 kdf = new PBKDF2HmacSHA256(passwd);
+
+        byte[] DK = new byte[dkLen];
+
+        byte[] B   = new byte[128 * r * p];
+        int[]  B32 = new int[32 * r * p];
+        int[]  XY  = new int[128 * r];
+        int[]  V   = new int[64 * r * N];
+        int[]  X   = new int[32];
+        int i;
+
+        kdf.pbkdf2(salt, 1, B, p * 128 * r);
+        le32dec(B, 0, B32, 0, B32.length);
+
+        for (i = 0; i + 1 < p; i += 2) {
+            smix2(B32, i * 32 * r, B32, (i + 1) * 32 * r, r, N, V, XY, X);
+        }
+        if (i < p) {
+            smix(B32, i * 32 * r, r, N, V, XY, X);
+        }
+
+        le32enc(B32, 0, B, 0, B32.length);
+        kdf.pbkdf2(B, 1, DK, dkLen);
+
+        return DK;
+    }
+
+    /**
+     * Get the smallest power of 2 time-memory tradeoff factor for {@link #scryptT} that keeps
+     * the stored part of {@code V} within the supplied memory limit.
+     *
+     * @param N         CPU cost parameter.
+     * @param r         Memory cost parameter.
+     * @param maxMemory Maximum number of bytes {@code V} may use.
+     *
+     * @return The factor, 1 if all of {@code V} fits.
+     */
+    public static int tradeoff(int N, int r, long maxMemory) {
+        int k = 1;
+        while (k < N && 128L * r * ((N + k - 1) / k) > maxMemory) {
+            k <<= 1;
+        }
+        return k;
+    }
+
+    /**
+     * Pure Java implementation of the <a href="http://www.tarsnap.com/scrypt/scrypt.pdf"/>scrypt KDF</a>
+     * that keeps the large {@code V} array in direct (off-heap) memory instead of on the heap.
+     * {@code V} is accessed with bulk word reads and writes, wiped explicitly and freed as soon
+     * as the derivation ends. The derived key is identical to the one returned by {@link #scryptJ}.
+     *
+     * @param passwd    Password.
+     * @param salt      Salt.
+     * @param N         CPU cost parameter.
+     * @param r         Memory cost parameter.
+     * @param p         Parallelization parameter.
+     * @param dkLen     Intended length of the derived key.
+     *
+     * @return The derived key.
+     *
+     * @throws GeneralSecurityException when HMAC_SHA256 is not available.
+     */
+    public static byte[] scryptD(byte[] passwd, byte[] salt, int N, int r, int p, int dkLen) throws GeneralSecurityException {
+        if (N < 2 || (N & (N - 1)) != 0) throw new IllegalArgumentException("N must be a power of 2 greater than 1");
+
+        if (N > MAX_VALUE / 128 / r) throw new IllegalArgumentException("Parameter N is too large");
+        if (r > MAX_VALUE / 128 / p) throw new IllegalArgumentException("Parameter r is too large");
+
+        PBKDF2HmacSHA256 kdf = new PBKDF2HmacSHA256(passwd);
+
+        byte[] DK = new byte[dkLen];
+
+        byte[] B   = new byte[128 * r * p];
+        int[]  B32 = new int[32 * r * p];
+        int[]  XY  = new int[64 * r];
+        int[]  T   = new int[32 * r];
+        int[]  X   = new int[16];
+        int i;
+
+        ByteBuffer buffer = DirectMemory.allocate(32 * r * N);
+        IntBuffer  V      = buffer.asIntBuffer();
+
+        try {
+            kdf.pbkdf2(salt, 1, B, p * 128 * r);
+            le32dec(B, 0, B32, 0, B32.length);
+
+            for (i = 0; i < p; i++) {
+                smix(B32, i * 32 * r, r, N, V, XY, X, T);
+            }
+
+            le32enc(B32, 0, B, 0, B32.length);
+            kdf.pbkdf2(B, 1, DK, dkLen);
+        } finally {
+            kdf.wipe();
+            Arrays.fill(B, (byte) 0);
+            Arrays.fill(B32, 0);
+            Arrays.fill(XY, 0);
+            Arrays.fill(T, 0);
+            Arrays.fill(X, 0);
+            DirectMemory.wipe(V, T);
+            DirectMemory.free(buffer);
+        }
+
+        return DK;
+    }
+
+    /**
+     * Pure Java implementation of the <a href="http://www.tarsnap.com/scrypt/scrypt.pdf"/>scrypt KDF</a>
+     * that runs the {@code p} independent smix lanes on the shared worker pool, using as many
+     * workers as there are processors and at most a quarter of the maximum heap size. Scratch
+     * space is taken from and returned to the {@link SCryptContext} pool.
+     *
+     * @param passwd    Password.
+     * @param salt      Salt.
+     * @param N         CPU cost parameter.
+     * @param r         Memory cost parameter.
+     * @param p         Parallelization parameter.
+     * @param dkLen     Intended length of the derived key.
+     *
+     * @return The derived key.
+     *
+     * @throws GeneralSecurityException when HMAC_SHA256 is not available.
+     */
+    public static byte[] scryptP(byte[] passwd, byte[] salt, int N, int r, int p, int dkLen) throws GeneralSecurityException {
+        Runtime runtime = Runtime.getRuntime();
+        SCryptContext context = SCryptContext.acquire(N, r, p);
+        try {
+            return scryptP(passwd, salt, dkLen, context, executor(), runtime.availableProcessors(), runtime.maxMemory() / 4);
+        } finally {
+            SCryptContext.release(context);
+        }
+    }
+
+    /**
+     * Pure Java implementation of the <a href="http://www.tarsnap.com/scrypt/scrypt.pdf"/>scrypt KDF</a>
+     * that runs the {@code p} independent smix lanes concurrently. Each worker allocates its own
+     * {@code V} and {@code XY} scratch space, so the number of workers is limited by both
+     * {@code threads} and the number of lanes that fit into {@code maxMemory}. The derived key is
+     * identical to the one returned by {@link #scryptJ}.
+     *
+     * @param passwd    Password.
+     * @param salt      Salt.
+     * @param N         CPU cost parameter.
+     * @param r         Memory cost parameter.
+     * @param p         Parallelization parameter.
+     * @param dkLen     Intended length of the derived key.
+     * @param executor  Executor the lanes are submitted to.
+     * @param threads   Maximum number of lanes processed concurrently.
+     * @param maxMemory Maximum number of bytes of scratch space used by all workers together.
+     *
+     * @return The derived key.
+     *
+     * @throws GeneralSecurityException when HMAC_SHA256 is not available.
+     */
+    public static byte[] scryptP(byte[] passwd, byte[] salt, int N, int r, int p, int dkLen,
+                                 ExecutorService executor, int threads, long maxMemory) throws GeneralSecurityException {
+        return scryptP(passwd, salt, dkLen, new SCryptContext(N, r, p), executor, threads, maxMemory);
+    }
+
+    /**
+     * Pure Java implementation of the <a href="http://www.tarsnap.com/scrypt/scrypt.pdf"/>scrypt KDF</a>
+     * that runs the {@code p} independent smix lanes concurrently using the scratch space of the
+     * supplied context, which is wiped before this method returns.
+     *
+     * @param passwd    Password.
+     * @param salt      Salt.
+     * @param dkLen     Intended length of the derived key.
+     * @param context   Scratch space for the (N, r, p) shape to use.
+     * @param executor  Executor the lanes are submitted to, may be null if {@code threads} is 1.
+     * @param threads   Maximum number of lanes processed concurrently.
+     * @param maxMemory Maximum number of bytes of scratch space used by all workers together.
+     *
+     * @return The derived key.
+     *
+     * @throws GeneralSecurityException when HMAC_SHA256 is not available.
+     */
+    public static byte[] scryptP(byte[] passwd, byte[] salt, int dkLen, SCryptContext context,
+                                 ExecutorService executor, int threads, long maxMemory) throws GeneralSecurityException {
+        return scryptP(passwd, salt, dkLen, context, executor, threads, maxMemory, null, null);
+    }
+
+    /**
+     * Pure Java implementation of the <a href="http://www.tarsnap.com/scrypt/scrypt.pdf"/>scrypt KDF</a>
+     * that runs the {@code p} independent smix lanes concurrently using the scratch space of the
+     * supplied context, reports its progress and can be cancelled. The context is wiped before
+     * this method returns, in particular when the derivation was cancelled.
+     *
+     * @param passwd    Password.
+     * @param salt      Salt.
+     * @param dkLen     Intended length of the derived key.
+     * @param context   Scratch space for the (N, r, p) shape to use.
+     * @param executor  Executor the lanes are submitted to, may be null if {@code threads} is 1.
+     * @param threads   Maximum number of lanes processed concurrently.
+     * @param maxMemory Maximum number of bytes of scratch space used by all workers together.
+     * @param listener  Listener notified about the progress, may be null.
+     * @param token     Token used to cancel the derivation, may be null.
+     *
+     * @return The derived key.
+     *
+     * @throws GeneralSecurityException when HMAC_SHA256 is not available.
+     * @throws java.util.concurrent.CancellationException when the derivation was cancelled.
+     */
+    public static byte[] scryptP(byte[] passwd, byte[] salt, int dkLen, final SCryptContext context,
+                                 ExecutorService executor, int threads, long maxMemory,
+                                 ProgressListener listener, CancellationToken token) throws GeneralSecurityException {
+        final int N = context.N;
+        final int r = context.r;
+        final int p = context.p;
+
+        PBKDF2HmacSHA256 kdf = new PBKDF2HmacSHA256(passwd);
+
+        byte[] DK = new byte[dkLen];
+
+        byte[] B = context.B;
+        final int[] B32 = context.B32;
+        final Progress progress = new Progress(listener, token, 2L * N * p);
+
+        try {
+            if (token != null) token.throwIfCancelled();
+
+            kdf.pbkdf2(salt, 1, B, p * 128 * r, executor, threads);
+            le32dec(B, 0, B32, 0, B32.length);
+
+            int workers = (int) Math.min(Math.min(threads, p), Math.max(1, maxMemory / context.laneMemory()));
+
+            if (workers <= 1) {
+                for (int i = 0; i < p; i++) {
+                    smix(B32, i * 32 * r, r, N, context.V(0), context.XY(0), context.X(0), progress);
+                }
+            } else {
+                final AtomicInteger lane = new AtomicInteger();
+                final CountDownLatch finished = new CountDownLatch(workers);
+                List<Future<?>> futures = new ArrayList<Future<?>>(workers);
+                boolean interrupted = false;
+
+                try {
+                    for (int w = 0; w < workers; w++) {
+                        final int worker = w;
+                        futures.add(executor.submit(new Runnable() {
+                            public void run() {
+                                try {
+                                    int[] V  = context.V(worker);
+                                    int[] XY = context.XY(worker);
+                                    int[] X  = context.X(worker);
+                                    int i;
+
+                                    while ((i = lane.getAndIncrement()) < p) {
+                                        smix(B32, i * 32 * r, r, N, V, XY, X, progress);
+                                    }
+                                } catch (RuntimeException e) {
+                                    progress.abort();
+                                    throw e;
+                                } catch (Error e) {
+                                    progress.abort();
+                                    throw e;
+                                } finally {
+                                    finished.countDown();
+                                }
+                            }
+                        }));
+                    }
+                    for (Future<?> future : futures) {
+                        future.get();
+                    }
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                    throw new IllegalStateException("Interrupted while waiting for smix lanes", e);
+                } catch (ExecutionException e) {
+                    Throwable cause = e.getCause();
+                    if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+                    if (cause instanceof Error) throw (Error) cause;
+                    throw new IllegalStateException(cause);
+                } finally {
+                    // Stop the remaining workers and wait until none of them touches the
+                    // context anymore, so it can be wiped and reused safely
+                    progress.abort();
+                    for (int w = futures.size(); w < workers; w++) {
+                        finished.countDown();
+                    }
+                    while (true) {
+                        try {
+                            finished.await();
+                            break;
+                        } catch (InterruptedException e) {
+                            interrupted = true;
+                        }
+                    }
+                    if (interrupted) Thread.currentThread().interrupt();
+                }
+            }
+
+            le32enc(B32, 0, B, 0, B32.length);
+            kdf.pbkdf2(B, 1, DK, dkLen);
+        } finally {
+            kdf.wipe();
+            context.wipe();
+        }
+
+        return DK;
+    }
+
+    /**
+     * Get the shared pool used by {@link #scryptP(byte[], byte[], int, int, int, int)}, which
+     * consists of one daemon thread per processor.
+     *
+     * @return The shared executor.
+     */
+    static synchronized ExecutorService executor() {
+        if (executor == null) {
+            executor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), new ThreadFactory() {
+                private final AtomicInteger count = new AtomicInteger();
+
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "scrypt-" + count.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return executor;
+    }
+
     public static void smix(byte[] B, int Bi, int r, int N, byte[] V, byte[] XY) {
         int Xi = 0;
         int Yi = 128 * r;
@@ -211,4 +768,306 @@ public class SCrypt {
 
         return n;
     }
+
+    public static void smix(int[] B, int Bi, int r, int N, int[] V, int[] XY, int[] X) {
+        smix(B, Bi, r, N, V, XY, X, null);
+    }
+
+    static void smix(int[] B, int Bi, int r, int N, int[] V, int[] XY, int[] X, Progress progress) {
+        int Xi = 0;
+        int Yi = 32 * r;
+        int i, k, n;
+
+        arraycopy(B, Bi, XY, Xi, 32 * r);
+
+        for (k = 0; k < N; k = n) {
+            n = Math.min(N, k + Progress.INTERVAL);
+            for (i = k; i < n; i++) {
+                arraycopy(XY, Xi, V, i * (32 * r), 32 * r);
+                blockmix_salsa8(XY, Xi, Yi, r, X);
+            }
+            if (progress != null) progress.advance(n - k);
+        }
+
+        for (k = 0; k < N; k = n) {
+            n = Math.min(N, k + Progress.INTERVAL);
+            for (i = k; i < n; i++) {
+                int j = integerify(XY, Xi, r) & (N - 1);
+                blockxor(V, j * (32 * r), XY, Xi, 32 * r);
+                blockmix_salsa8(XY, Xi, Yi, r, X);
+            }
+            if (progress != null) progress.advance(n - k);
+        }
+
+        arraycopy(XY, Xi, B, Bi, 32 * r);
+    }
+
+    public static void smix(int[] B, int Bi, int r, int N, IntBuffer V, int[] XY, int[] X, int[] T) {
+        int Xi = 0;
+        int Yi = 32 * r;
+        int i;
+
+        arraycopy(B, Bi, XY, Xi, 32 * r);
+
+        for (i = 0; i < N; i++) {
+            V.position(i * (32 * r));
+            V.put(XY, Xi, 32 * r);
+            blockmix_salsa8(XY, Xi, Yi, r, X);
+        }
+
+        for (i = 0; i < N; i++) {
+            int j = integerify(XY, Xi, r) & (N - 1);
+            V.position(j * (32 * r));
+            V.get(T, 0, 32 * r);
+            blockxor(T, 0, XY, Xi, 32 * r);
+            blockmix_salsa8(XY, Xi, Yi, r, X);
+        }
+
+        arraycopy(XY, Xi, B, Bi, 32 * r);
+    }
+
+    public static void smix(int[] B, int Bi, int r, int N, int k, int[] V, int[] XY, int[] X, int[] T) {
+        smix(B, Bi, r, N, k, V, XY, X, T, null);
+    }
+
+    static void smix(int[] B, int Bi, int r, int N, int k, int[] V, int[] XY, int[] X, int[] T, Progress progress) {
+        int Xi = 0;
+        int Yi = 32 * r;
+        int i, j, m, l, n;
+
+        arraycopy(B, Bi, XY, Xi, 32 * r);
+
+        for (l = 0; l < N; l = n) {
+            n = Math.min(N, l + Progress.INTERVAL);
+            for (i = l; i < n; i++) {
+                if (i % k == 0) arraycopy(XY, Xi, V, (i / k) * (32 * r), 32 * r);
+                blockmix_salsa8(XY, Xi, Yi, r, X);
+            }
+            if (progress != null) progress.advance(n - l);
+        }
+
+        for (l = 0; l < N; l = n) {
+            n = Math.min(N, l + Progress.INTERVAL);
+            for (i = l; i < n; i++) {
+                j = integerify(XY, Xi, r) & (N - 1);
+                arraycopy(V, (j / k) * (32 * r), T, 0, 32 * r);
+                for (m = j % k; m > 0; m--) {
+                    blockmix_salsa8(T, 0, 32 * r, r, X);
+                }
+                blockxor(T, 0, XY, Xi, 32 * r);
+                blockmix_salsa8(XY, Xi, Yi, r, X);
+            }
+            if (progress != null) progress.advance(n - l);
+        }
+
+        arraycopy(XY, Xi, B, Bi, 32 * r);
+    }
+
+    public static void smix2(int[] B0, int Bi0, int[] B1, int Bi1, int r, int N, int[] V, int[] XY, int[] X) {
+        int Xi0 = 0;
+        int Xi1 = 64 * r;
+        int Vi1 = 32 * r * N;
+        int i, j0, j1;
+
+        arraycopy(B0, Bi0, XY, Xi0, 32 * r);
+        arraycopy(B1, Bi1, XY, Xi1, 32 * r);
+
+        for (i = 0; i < N; i++) {
+            arraycopy(XY, Xi0, V, i * (32 * r), 32 * r);
+            arraycopy(XY, Xi1, V, Vi1 + i * (32 * r), 32 * r);
+            blockmix_salsa8x2(XY, r, X);
+        }
+
+        for (i = 0; i < N; i++) {
+            j0 = integerify(XY, Xi0, r) & (N - 1);
+            j1 = integerify(XY, Xi1, r) & (N - 1);
+            blockxor(V, j0 * (32 * r), XY, Xi0, 32 * r);
+            blockxor(V, Vi1 + j1 * (32 * r), XY, Xi1, 32 * r);
+            blockmix_salsa8x2(XY, r, X);
+        }
+
+        arraycopy(XY, Xi0, B0, Bi0, 32 * r);
+        arraycopy(XY, Xi1, B1, Bi1, 32 * r);
+    }
+
+    public static void blockmix_salsa8x2(int[] XY, int r, int[] X) {
+        int Bi0 = 0;
+        int Yi0 = 32 * r;
+        int Bi1 = 64 * r;
+        int Yi1 = 96 * r;
+        int i;
+
+        arraycopy(XY, Bi0 + (2 * r - 1) * 16, X, 0, 16);
+        arraycopy(XY, Bi1 + (2 * r - 1) * 16, X, 16, 16);
+
+        for (i = 0; i < 2 * r; i++) {
+            blockxor(XY, Bi0 + i * 16, X, 0, 16);
+            blockxor(XY, Bi1 + i * 16, X, 16, 16);
+            salsa20_8x2(X);
+            arraycopy(X, 0, XY, Yi0 + (i * 16), 16);
+            arraycopy(X, 16, XY, Yi1 + (i * 16), 16);
+        }
+
+        for (i = 0; i < r; i++) {
+            arraycopy(XY, Yi0 + (i * 2) * 16, XY, Bi0 + (i * 16), 16);
+            arraycopy(XY, Yi1 + (i * 2) * 16, XY, Bi1 + (i * 16), 16);
+        }
+
+        for (i = 0; i < r; i++) {
+            arraycopy(XY, Yi0 + (i * 2 + 1) * 16, XY, Bi0 + (i + r) * 16, 16);
+            arraycopy(XY, Yi1 + (i * 2 + 1) * 16, XY, Bi1 + (i + r) * 16, 16);
+        }
+    }
+
+    public static void salsa20_8x2(int[] B) {
+        int x00 = B[ 0], x01 = B[ 1], x02 = B[ 2], x03 = B[ 3];
+        int x04 = B[ 4], x05 = B[ 5], x06 = B[ 6], x07 = B[ 7];
+        int x08 = B[ 8], x09 = B[ 9], x10 = B[10], x11 = B[11];
+        int x12 = B[12], x13 = B[13], x14 = B[14], x15 = B[15];
+        int y00 = B[16], y01 = B[17], y02 = B[18], y03 = B[19];
+        int y04 = B[20], y05 = B[21], y06 = B[22], y07 = B[23];
+        int y08 = B[24], y09 = B[25], y10 = B[26], y11 = B[27];
+        int y12 = B[28], y13 = B[29], y14 = B[30], y15 = B[31];
+        int i;
+
+        for (i = 8; i > 0; i -= 2) {
+            x04 ^= R(x00+x12, 7);  y04 ^= R(y00+y12, 7);
+            x08 ^= R(x04+x00, 9);  y08 ^= R(y04+y00, 9);
+            x12 ^= R(x08+x04,13);  y12 ^= R(y08+y04,13);
+            x00 ^= R(x12+x08,18);  y00 ^= R(y12+y08,18);
+            x09 ^= R(x05+x01, 7);  y09 ^= R(y05+y01, 7);
+            x13 ^= R(x09+x05, 9);  y13 ^= R(y09+y05, 9);
+            x01 ^= R(x13+x09,13);  y01 ^= R(y13+y09,13);
+            x05 ^= R(x01+x13,18);  y05 ^= R(y01+y13,18);
+            x14 ^= R(x10+x06, 7);  y14 ^= R(y10+y06, 7);
+            x02 ^= R(x14+x10, 9);  y02 ^= R(y14+y10, 9);
+            x06 ^= R(x02+x14,13);  y06 ^= R(y02+y14,13);
+            x10 ^= R(x06+x02,18);  y10 ^= R(y06+y02,18);
+            x03 ^= R(x15+x11, 7);  y03 ^= R(y15+y11, 7);
+            x07 ^= R(x03+x15, 9);  y07 ^= R(y03+y15, 9);
+            x11 ^= R(x07+x03,13);  y11 ^= R(y07+y03,13);
+            x15 ^= R(x11+x07,18);  y15 ^= R(y11+y07,18);
+            x01 ^= R(x00+x03, 7);  y01 ^= R(y00+y03, 7);
+            x02 ^= R(x01+x00, 9);  y02 ^= R(y01+y00, 9);
+            x03 ^= R(x02+x01,13);  y03 ^= R(y02+y01,13);
+            x00 ^= R(x03+x02,18);  y00 ^= R(y03+y02,18);
+            x06 ^= R(x05+x04, 7);  y06 ^= R(y05+y04, 7);
+            x07 ^= R(x06+x05, 9);  y07 ^= R(y06+y05, 9);
+            x04 ^= R(x07+x06,13);  y04 ^= R(y07+y06,13);
+            x05 ^= R(x04+x07,18);  y05 ^= R(y04+y07,18);
+            x11 ^= R(x10+x09, 7);  y11 ^= R(y10+y09, 7);
+            x08 ^= R(x11+x10, 9);  y08 ^= R(y11+y10, 9);
+            x09 ^= R(x08+x11,13);  y09 ^= R(y08+y11,13);
+            x10 ^= R(x09+x08,18);  y10 ^= R(y09+y08,18);
+            x12 ^= R(x15+x14, 7);  y12 ^= R(y15+y14, 7);
+            x13 ^= R(x12+x15, 9);  y13 ^= R(y12+y15, 9);
+            x14 ^= R(x13+x12,13);  y14 ^= R(y13+y12,13);
+            x15 ^= R(x14+x13,18);  y15 ^= R(y14+y13,18);
+        }
+
+        B[ 0] += x00;  B[ 1] += x01;  B[ 2] += x02;  B[ 3] += x03;
+        B[ 4] += x04;  B[ 5] += x05;  B[ 6] += x06;  B[ 7] += x07;
+        B[ 8] += x08;  B[ 9] += x09;  B[10] += x10;  B[11] += x11;
+        B[12] += x12;  B[13] += x13;  B[14] += x14;  B[15] += x15;
+        B[16] += y00;  B[17] += y01;  B[18] += y02;  B[19] += y03;
+        B[20] += y04;  B[21] += y05;  B[22] += y06;  B[23] += y07;
+        B[24] += y08;  B[25] += y09;  B[26] += y10;  B[27] += y11;
+        B[28] += y12;  B[29] += y13;  B[30] += y14;  B[31] += y15;
+    }
+
+    public static void blockmix_salsa8(int[] BY, int Bi, int Yi, int r, int[] X) {
+        int i;
+
+        arraycopy(BY, Bi + (2 * r - 1) * 16, X, 0, 16);
+
+        for (i = 0; i < 2 * r; i++) {
+            blockxor(BY, Bi + i * 16, X, 0, 16);
+            salsa20_8(X);
+            arraycopy(X, 0, BY, Yi + (i * 16), 16);
+        }
+
+        for (i = 0; i < r; i++) {
+            arraycopy(BY, Yi + (i * 2) * 16, BY, Bi + (i * 16), 16);
+        }
+
+        for (i = 0; i < r; i++) {
+            arraycopy(BY, Yi + (i * 2 + 1) * 16, BY, Bi + (i + r) * 16, 16);
+        }
+    }
+
+    public static void salsa20_8(int[] B) {
+        int x00 = B[ 0], x01 = B[ 1], x02 = B[ 2], x03 = B[ 3];
+        int x04 = B[ 4], x05 = B[ 5], x06 = B[ 6], x07 = B[ 7];
+        int x08 = B[ 8], x09 = B[ 9], x10 = B[10], x11 = B[11];
+        int x12 = B[12], x13 = B[13], x14 = B[14], x15 = B[15];
+        int i;
+
+        for (i = 8; i > 0; i -= 2) {
+            x04 ^= R(x00+x12, 7);  x08 ^= R(x04+x00, 9);
+            x12 ^= R(x08+x04,13);  x00 ^= R(x12+x08,18);
+            x09 ^= R(x05+x01, 7);  x13 ^= R(x09+x05, 9);
+            x01 ^= R(x13+x09,13);  x05 ^= R(x01+x13,18);
+            x14 ^= R(x10+x06, 7);  x02 ^= R(x14+x10, 9);
+            x06 ^= R(x02+x14,13);  x10 ^= R(x06+x02,18);
+            x03 ^= R(x15+x11, 7);  x07 ^= R(x03+x15, 9);
+            x11 ^= R(x07+x03,13);  x15 ^= R(x11+x07,18);
+            x01 ^= R(x00+x03, 7);  x02 ^= R(x01+x00, 9);
+            x03 ^= R(x02+x01,13);  x00 ^= R(x03+x02,18);
+            x06 ^= R(x05+x04, 7);  x07 ^= R(x06+x05, 9);
+            x04 ^= R(x07+x06,13);  x05 ^= R(x04+x07,18);
+            x11 ^= R(x10+x09, 7);  x08 ^= R(x11+x10, 9);
+            x09 ^= R(x08+x11,13);  x10 ^= R(x09+x08,18);
+            x12 ^= R(x15+x14, 7);  x13 ^= R(x12+x15, 9);
+            x14 ^= R(x13+x12,13);  x15 ^= R(x14+x13,18);
+        }
+
+        B[ 0] += x00;  B[ 1] += x01;  B[ 2] += x02;  B[ 3] += x03;
+        B[ 4] += x04;  B[ 5] += x05;  B[ 6] += x06;  B[ 7] += x07;
+        B[ 8] += x08;  B[ 9] += x09;  B[10] += x10;  B[11] += x11;
+        B[12] += x12;  B[13] += x13;  B[14] += x14;  B[15] += x15;
+    }
+
+    public static void blockxor(int[] S, int Si, int[] D, int Di, int len) {
+        for (int i = 0; i < len; i++) {
+            D[Di + i] ^= S[Si + i];
+        }
+    }
+
+    public static int integerify(int[] B, int Bi, int r) {
+        return B[Bi + (2 * r - 1) * 16];
+    }
+
+    /**
+     * Decode little-endian bytes to 32-bit words.
+     *
+     * @param src   Source bytes.
+     * @param si    Offset into {@code src}.
+     * @param dst   Destination words.
+     * @param di    Offset into {@code dst}.
+     * @param len   Number of words to decode.
+     */
+    public static void le32dec(byte[] src, int si, int[] dst, int di, int len) {
+        for (int i = 0; i < len; i++, si += 4) {
+            dst[di + i] = (src[si] & 0xff) | (src[si + 1] & 0xff) << 8 | (src[si + 2] & 0xff) << 16 | (src[si + 3] & 0xff) << 24;
+        }
+    }
+
+    /**
+     * Encode 32-bit words to little-endian bytes.
+     *
+     * @param src   Source words.
+     * @param si    Offset into {@code src}.
+     * @param dst   Destination bytes.
+     * @param di    Offset into {@code dst}.
+     * @param len   Number of words to encode.
+     */
+    public static void le32enc(int[] src, int si, byte[] dst, int di, int len) {
+        for (int i = 0; i < len; i++, di += 4) {
+            int n = src[si + i];
+            dst[di]     = (byte) n;
+            dst[di + 1] = (byte) (n >>> 8);
+            dst[di + 2] = (byte) (n >>> 16);
+            dst[di + 3] = (byte) (n >>> 24);
+        }
+    }
 }
@@ -0,0 +1,97 @@
+/*
+ * Copyright 2013 Matteo Hausner
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.lambdaworks.crypto;
+
+import java.security.GeneralSecurityException;
+
+/**
+ * The {@link SCrypt} engines that can serve {@link SCrypt#scrypt(byte[], byte[], int, int, int, int)}.
+ * {@link SCryptBackends} selects one of them based on a known-answer test and a short
+ * benchmark.
+ */
+public enum SCryptBackend {
+    /** Native C implementation, see {@link SCrypt#scryptN}. */
+    NATIVE {
+        boolean available() {
+            return SCrypt.loadNativeLibrary();
+        }
+
+        public byte[] scrypt(byte[] passwd, byte[] salt, int N, int r, int p, int dkLen) {
+            return SCrypt.scryptN(passwd, salt, N, r, p, dkLen);
+        }
+    },
+
+    /** Byte oriented reference implementation, see {@link SCrypt#scryptJ}. */
+    JAVA {
+        public byte[] scrypt(byte[] passwd, byte[] salt, int N, int r, int p, int dkLen) throws GeneralSecurityException {
+            return SCrypt.scryptJ(passwd, salt, N, r, p, dkLen);
+        }
+    },
+
+    /** Word oriented implementation, see {@link SCrypt#scryptI}. */
+    INT {
+        public byte[] scrypt(byte[] passwd, byte[] salt, int N, int r, int p, int dkLen) throws GeneralSecurityException {
+            return SCrypt.scryptI(passwd, salt, N, r, p, dkLen);
+        }
+    },
+
+    /** Two lanes in lockstep, see {@link SCrypt#scryptL}. */
+    LANES {
+        public byte[] scrypt(byte[] passwd, byte[] salt, int N, int r, int p, int dkLen) throws GeneralSecurityException {
+            return SCrypt.scryptL(passwd, salt, N, r, p, dkLen);
+        }
+    },
+
+    /** Off-heap {@code V}, see {@link SCrypt#scryptD}. */
+    DIRECT {
+        public byte[] scrypt(byte[] passwd, byte[] salt, int N, int r, int p, int dkLen) throws GeneralSecurityException {
+            return SCrypt.scryptD(passwd, salt, N, r, p, dkLen);
+        }
+    },
+
+    /** Lanes spread over worker threads, see {@link SCrypt#scryptP}. */
+    PARALLEL {
+        public byte[] scrypt(byte[] passwd, byte[] salt, int N, int r, int p, int dkLen) throws GeneralSecurityException {
+            return SCrypt.scryptP(passwd, salt, N, r, p, dkLen);
+        }
+    };
+
+    /**
+     * Check whether this backend can be used in the current VM.
+     *
+     * @return true if the backend is available.
+     */
+    boolean available() {
+        return true;
+    }
+
+    /**
+     * Derive a key with this backend.
+     *
+     * @param passwd    Password.
+     * @param salt      Salt.
+     * @param N         CPU cost parameter.
+     * @param r         Memory cost parameter.
+     * @param p         Parallelization parameter.
+     * @param dkLen     Intended length of the derived key.
+     *
+     * @return The derived key.
+     *
+     * @throws GeneralSecurityException when HMAC_SHA256 is not available.
+     */
+    public abstract byte[] scrypt(byte[] passwd, byte[] salt, int N, int r, int p, int dkLen) throws GeneralSecurityException;
+}
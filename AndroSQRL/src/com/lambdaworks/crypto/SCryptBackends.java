@@ -0,0 +1,227 @@
+/*
+ * Copyright 2013 Matteo Hausner
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.lambdaworks.crypto;
+
+import java.util.Arrays;
+
+/**
+ * {@code SCryptBackends} selects the {@link SCryptBackend} used by
+ * {@link SCrypt#scrypt(byte[], byte[], int, int, int, int)}. Every available backend,
+ * including the native library which is loaded here, first has to reproduce a known
+ * answer and is then timed on a small derivation. The fastest correct backend wins.
+ *
+ * Selection runs once, either in the background after {@link #preload} or on the calling
+ * thread via {@link #select}. A backend remembered from an earlier selection on the same
+ * device may be passed to {@link #preload(SCryptBackend, Listener)}, it then only has to
+ * pass the known-answer test. Until selection has finished {@link #backend} does not wait
+ * and returns {@link SCryptBackend#NATIVE} if the library has already been loaded, or
+ * {@link SCryptBackend#JAVA}, so no caller is blocked by library loading. The
+ * multi-threaded {@link SCryptBackend#PARALLEL} backend is only used when it wins the
+ * benchmark or is forced.
+ *
+ * The system property {@code com.lambdaworks.crypto.backend} may be used to force a
+ * backend by name, for example {@code native} or {@code int}.
+ */
+public class SCryptBackends {
+    // Small enough to run on every start, with r and p > 1 so the multi-lane backends are
+    // exercised. Computed with an independent implementation that reproduces RFC 7914.
+    private static final byte[] KAT_PASSWD = "password".getBytes();
+    private static final byte[] KAT_SALT   = "NaCl".getBytes();
+    private static final int    KAT_N      = 16;
+    private static final int    KAT_R      = 8;
+    private static final int    KAT_P      = 2;
+    private static final byte[] KAT_DK     = {
+        (byte) 0xd8, (byte) 0xd4, (byte) 0x86, (byte) 0x71, (byte) 0x27, (byte) 0xa6, (byte) 0x36, (byte) 0x9b,
+        (byte) 0x5f, (byte) 0x4f, (byte) 0xf8, (byte) 0xbb, (byte) 0x96, (byte) 0xff, (byte) 0xfc, (byte) 0x9d,
+        (byte) 0xd3, (byte) 0x8a, (byte) 0x73, (byte) 0xa5, (byte) 0xb4, (byte) 0x05, (byte) 0x8c, (byte) 0xd1,
+        (byte) 0x42, (byte) 0x3b, (byte) 0xaa, (byte) 0x79, (byte) 0xfb, (byte) 0xbd, (byte) 0x1d, (byte) 0xa4,
+        (byte) 0xce, (byte) 0x0e, (byte) 0x0f, (byte) 0xe4, (byte) 0x86, (byte) 0x38, (byte) 0x09, (byte) 0x54,
+        (byte) 0x25, (byte) 0x9d, (byte) 0x12, (byte) 0x28, (byte) 0x2b, (byte) 0x99, (byte) 0x40, (byte) 0xdf,
+        (byte) 0x8c, (byte) 0x8c, (byte) 0x87, (byte) 0x8d, (byte) 0x38, (byte) 0x46, (byte) 0x68, (byte) 0x30,
+        (byte) 0x8a, (byte) 0x16, (byte) 0x38, (byte) 0x3d, (byte) 0x64, (byte) 0x1e, (byte) 0xfe, (byte) 0xbd
+    };
+
+    // The shape of a real derivation, r = 8 and several lanes, at a fraction of its cost
+    private static final int BENCHMARK_N      = 256;
+    private static final int BENCHMARK_R      = 8;
+    private static final int BENCHMARK_P      = 4;
+    private static final int BENCHMARK_ROUNDS = 3;
+
+    private static volatile SCryptBackend selected;
+    private static volatile String reason;
+    private static Thread preloader;
+
+    /**
+     * Receives the result of a backend selection.
+     */
+    public interface Listener {
+        /**
+         * Called once the backend has been selected.
+         *
+         * @param backend   The selected backend.
+         * @param reason    Human readable explanation of the choice.
+         */
+        void selected(SCryptBackend backend, String reason);
+    }
+
+    /**
+     * Start selecting the backend on a background thread unless that already happened.
+     *
+     * @param listener  Listener notified on the background thread, may be null.
+     */
+    public static void preload(Listener listener) {
+        preload(null, listener);
+    }
+
+    /**
+     * Start selecting the backend on a background thread unless that already happened,
+     * trying a backend remembered from an earlier selection first.
+     *
+     * @param remembered    Backend selected earlier on this device, may be null.
+     * @param listener      Listener notified on the background thread, may be null.
+     */
+    public static synchronized void preload(final SCryptBackend remembered, final Listener listener) {
+        if (preloader != null) return;
+
+        preloader = new Thread("scrypt-preload") {
+            public void run() {
+                SCryptBackend backend = remembered != null && restore(remembered) ? remembered : select();
+                if (listener != null) listener.selected(backend, reason);
+            }
+        };
+        preloader.setDaemon(true);
+        preloader.start();
+    }
+
+    /**
+     * Select the backend on the calling thread, or return the one already selected.
+     *
+     * @return The selected backend.
+     */
+    public static synchronized SCryptBackend select() {
+        if (selected != null) return selected;
+
+        String name = System.getProperty("com.lambdaworks.crypto.backend");
+        if (name != null) {
+            SCryptBackend backend = SCryptBackend.valueOf(name.toUpperCase());
+            if (!backend.available()) throw new IllegalStateException("Backend " + name + " is not available");
+            reason   = "forced by com.lambdaworks.crypto.backend";
+            selected = backend;
+            return selected;
+        }
+
+        SCryptBackend[] backends = SCryptBackend.values();
+        String[] results = new String[backends.length];
+        long[] times = new long[backends.length];
+
+        for (int i = 0; i < backends.length; i++) {
+            times[i] = Long.MAX_VALUE;
+            if (!backends[i].available()) {
+                results[i] = "unavailable";
+            } else if (!passes(backends[i])) {
+                results[i] = "failed known-answer test";
+            }
+        }
+
+        // Time the backends round-robin so none of them profits from a JIT warmed up by the others
+        for (int round = 0; round < BENCHMARK_ROUNDS; round++) {
+            for (int i = 0; i < backends.length; i++) {
+                if (results[i] != null) continue;
+                try {
+                    long start = System.nanoTime();
+                    backends[i].scrypt(KAT_PASSWD, KAT_SALT, BENCHMARK_N, BENCHMARK_R, BENCHMARK_P, KAT_DK.length);
+                    times[i] = Math.min(times[i], System.nanoTime() - start);
+                } catch (Throwable e) {
+                    results[i] = "failed with " + e;
+                }
+            }
+        }
+
+        SCryptBackend fastest = null;
+        long fastestTime = Long.MAX_VALUE;
+        StringBuilder sb = new StringBuilder();
+
+        for (int i = 0; i < backends.length; i++) {
+            if (results[i] == null) {
+                results[i] = times[i] / 1000 + " us";
+                if (times[i] < fastestTime) {
+                    fastest     = backends[i];
+                    fastestTime = times[i];
+                }
+            }
+            if (sb.length() > 0) sb.append(", ");
+            sb.append(backends[i]).append(' ').append(results[i]);
+        }
+
+        if (fastest == null) {
+            reason   = "no backend passed, using default (" + sb + ")";
+            selected = SCryptBackend.JAVA;
+        } else {
+            reason   = "fastest correct backend (" + sb + ")";
+            selected = fastest;
+        }
+
+        return selected;
+    }
+
+    /**
+     * Select a backend remembered from an earlier selection without running the benchmark,
+     * unless a backend has already been selected or is forced.
+     *
+     * @param backend   Backend selected earlier on this device.
+     *
+     * @return true if the backend is now selected.
+     */
+    public static synchronized boolean restore(SCryptBackend backend) {
+        if (selected != null) return selected == backend;
+        if (System.getProperty("com.lambdaworks.crypto.backend") != null) return false;
+        if (!backend.available() || !passes(backend)) return false;
+
+        reason   = "remembered from an earlier selection";
+        selected = backend;
+        return true;
+    }
+
+    private static boolean passes(SCryptBackend backend) {
+        try {
+            return Arrays.equals(KAT_DK, backend.scrypt(KAT_PASSWD, KAT_SALT, KAT_N, KAT_R, KAT_P, KAT_DK.length));
+        } catch (Throwable e) {
+            return false;
+        }
+    }
+
+    /**
+     * Get the selected backend without waiting for a selection in progress.
+     *
+     * @return The selected backend or, if none is selected yet, {@link SCryptBackend#NATIVE}
+     *         when the native library is already loaded and {@link SCryptBackend#JAVA} otherwise.
+     */
+    public static SCryptBackend backend() {
+        SCryptBackend backend = selected;
+        if (backend != null) return backend;
+        return SCrypt.isNativeLibraryLoaded() ? SCryptBackend.NATIVE : SCryptBackend.JAVA;
+    }
+
+    /**
+     * Get the explanation of the selection.
+     *
+     * @return The reason or null if no backend has been selected yet.
+     */
+    public static String reason() {
+        return reason;
+    }
+}
@@ -0,0 +1,208 @@
+/*
+ * Copyright 2013 Matteo Hausner
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.lambdaworks.crypto;
+
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static java.lang.Integer.MAX_VALUE;
+
+/**
+ * Derives keys for many (password, salt) pairs at once. Jobs are grouped by their
+ * (N, r, p) shape and processed by a fixed number of workers, each of which keeps one
+ * {@link SCryptContext} per shape for all jobs of that shape instead of allocating fresh
+ * scratch space for every derivation. Throughput rather than the latency of a single
+ * derivation is optimized, so every job runs its lanes serially on one worker.
+ */
+public class SCryptBatch {
+    private final ExecutorService executor;
+    private final int threads;
+    private final long maxMemory;
+
+    /**
+     * A single derivation of a batch.
+     */
+    public static class Job {
+        public final byte[] passwd;
+        public final byte[] salt;
+        public final int N;
+        public final int r;
+        public final int p;
+        public final int dkLen;
+
+        /**
+         * @param passwd    Password.
+         * @param salt      Salt.
+         * @param N         CPU cost parameter.
+         * @param r         Memory cost parameter.
+         * @param p         Parallelization parameter.
+         * @param dkLen     Intended length of the derived key.
+         */
+        public Job(byte[] passwd, byte[] salt, int N, int r, int p, int dkLen) {
+            this.passwd = passwd;
+            this.salt   = salt;
+            this.N      = N;
+            this.r      = r;
+            this.p      = p;
+            this.dkLen  = dkLen;
+        }
+    }
+
+    /**
+     * A {@code Callback} is notified whenever a job of a batch has finished. It is invoked
+     * from the worker threads, in completion order.
+     */
+    public interface Callback {
+        /**
+         * @param index Index of the job in the list passed to {@link SCryptBatch#derive}.
+         * @param key   The derived key.
+         */
+        void derived(int index, byte[] key);
+    }
+
+    /**
+     * Create a batch processor that uses the shared scrypt worker pool, one worker per
+     * processor and at most a quarter of the maximum heap size.
+     */
+    public SCryptBatch() {
+        this(SCrypt.executor(), Runtime.getRuntime().availableProcessors(), Runtime.getRuntime().maxMemory() / 4);
+    }
+
+    /**
+     * Create a batch processor.
+     *
+     * @param executor  Executor the workers are submitted to.
+     * @param threads   Maximum number of workers.
+     * @param maxMemory Maximum number of bytes of scratch space used by all workers together.
+     */
+    public SCryptBatch(ExecutorService executor, int threads, long maxMemory) {
+        this.executor  = executor;
+        this.threads   = threads;
+        this.maxMemory = maxMemory;
+    }
+
+    /**
+     * Derive the keys of all jobs.
+     *
+     * @param jobs  Jobs to process.
+     *
+     * @return The derived keys, in the same order as the jobs.
+     *
+     * @throws GeneralSecurityException when HMAC_SHA256 is not available.
+     */
+    public List<byte[]> derive(List<Job> jobs) throws GeneralSecurityException {
+        byte[][] keys = new byte[jobs.size()][];
+        derive(jobs, keys, null);
+        return Arrays.asList(keys);
+    }
+
+    /**
+     * Derive the keys of all jobs, passing each key to the callback as soon as it is
+     * available. Returns once all jobs have finished.
+     *
+     * @param jobs      Jobs to process.
+     * @param callback  Callback notified about every derived key.
+     *
+     * @throws GeneralSecurityException when HMAC_SHA256 is not available.
+     */
+    public void derive(List<Job> jobs, Callback callback) throws GeneralSecurityException {
+        derive(jobs, null, callback);
+    }
+
+    private void derive(final List<Job> jobs, final byte[][] keys, final Callback callback) throws GeneralSecurityException {
+        if (jobs.isEmpty()) return;
+
+        // Process jobs grouped by shape, so workers can keep their context
+        final Integer[] order = new Integer[jobs.size()];
+        long laneMemory = 0;
+        for (int i = 0; i < order.length; i++) {
+            Job job = jobs.get(i);
+            order[i] = i;
+            laneMemory = Math.max(laneMemory, 128L * job.r * job.N + 256L * job.r * job.p + 256L * job.r);
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            public int compare(Integer a, Integer b) {
+                Job x = jobs.get(a), y = jobs.get(b);
+                if (x.N != y.N) return x.N < y.N ? -1 : 1;
+                if (x.r != y.r) return x.r < y.r ? -1 : 1;
+                if (x.p != y.p) return x.p < y.p ? -1 : 1;
+                return 0;
+            }
+        });
+
+        int workers = (int) Math.min(Math.min(threads, order.length), Math.max(1, maxMemory / laneMemory));
+        final AtomicInteger next = new AtomicInteger();
+
+        List<Future<Void>> futures = new ArrayList<Future<Void>>(workers);
+        try {
+            for (int w = 0; w < workers; w++) {
+                futures.add(executor.submit(new Callable<Void>() {
+                    public Void call() throws GeneralSecurityException {
+                        SCryptContext context = null;
+                        int k;
+
+                        try {
+                            while ((k = next.getAndIncrement()) < order.length) {
+                                int index = order[k];
+                                Job job = jobs.get(index);
+
+                                if (context == null || context.N != job.N || context.r != job.r || context.p != job.p) {
+                                    if (context != null) SCryptContext.release(context);
+                                    context = SCryptContext.acquire(job.N, job.r, job.p);
+                                }
+
+                                byte[] key = SCrypt.scryptP(job.passwd, job.salt, job.dkLen, context, null, 1, MAX_VALUE);
+
+                                if (keys != null) keys[index] = key;
+                                if (callback != null) callback.derived(index, key);
+                            }
+                        } finally {
+                            if (context != null) SCryptContext.release(context);
+                        }
+
+                        return null;
+                    }
+                }));
+            }
+            for (Future<Void> future : futures) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for scrypt batch", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof GeneralSecurityException) throw (GeneralSecurityException) cause;
+            if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+            if (cause instanceof Error) throw (Error) cause;
+            throw new IllegalStateException(cause);
+        } finally {
+            next.set(order.length);
+            for (Future<Void> future : futures) {
+                future.cancel(false);
+            }
+        }
+    }
+}
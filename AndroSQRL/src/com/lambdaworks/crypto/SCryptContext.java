@@ -0,0 +1,253 @@
+/*
+ * Copyright 2013 Matteo Hausner
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.lambdaworks.crypto;
+
+import java.security.GeneralSecurityException;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+import static java.lang.Integer.MAX_VALUE;
+
+/**
+ * Reusable scratch space for {@link SCrypt} derivations with a fixed (N, r, p) shape. A
+ * context holds the word buffer {@code B} for all lanes and one {@code V}/{@code XY}
+ * scratch area per worker, which are allocated on first use and kept until the context
+ * is discarded. All buffers are wiped after each derivation.
+ *
+ * Contexts may be pooled via {@link #acquire} and {@link #release}. The pool only holds
+ * wiped contexts and can be emptied at any time, for example when the platform asks the
+ * process to trim its memory usage.
+ *
+ * A context is not thread-safe, it must only be used by one derivation at a time.
+ */
+public class SCryptContext {
+    private static final Map<String, ArrayDeque<SCryptContext>> pool = new HashMap<String, ArrayDeque<SCryptContext>>();
+    private static long pooledMemory;
+    private static long maxPooledMemory = Runtime.getRuntime().maxMemory() / 8;
+
+    public final int N;
+    public final int r;
+    public final int p;
+
+    final byte[] B;
+    final int[]  B32;
+
+    private final int[][] V;
+    private final int[][] XY;
+    private final int[][] X;
+
+    /**
+     * Create a new context for the supplied scrypt parameters.
+     *
+     * @param N         CPU cost parameter.
+     * @param r         Memory cost parameter.
+     * @param p         Parallelization parameter.
+     */
+    public SCryptContext(int N, int r, int p) {
+        if (N < 2 || (N & (N - 1)) != 0) throw new IllegalArgumentException("N must be a power of 2 greater than 1");
+
+        if (N > MAX_VALUE / 128 / r) throw new IllegalArgumentException("Parameter N is too large");
+        if (r > MAX_VALUE / 128 / p) throw new IllegalArgumentException("Parameter r is too large");
+
+        this.N = N;
+        this.r = r;
+        this.p = p;
+
+        B   = new byte[128 * r * p];
+        B32 = new int[32 * r * p];
+
+        V  = new int[p][];
+        XY = new int[p][];
+        X  = new int[p][];
+    }
+
+    /**
+     * Get a wiped context for the supplied scrypt parameters, reusing a pooled one if
+     * available.
+     *
+     * @param N         CPU cost parameter.
+     * @param r         Memory cost parameter.
+     * @param p         Parallelization parameter.
+     *
+     * @return The context.
+     */
+    public static SCryptContext acquire(int N, int r, int p) {
+        synchronized (pool) {
+            ArrayDeque<SCryptContext> contexts = pool.get(key(N, r, p));
+            if (contexts != null && !contexts.isEmpty()) {
+                SCryptContext context = contexts.pop();
+                pooledMemory -= context.memory();
+                return context;
+            }
+        }
+        return new SCryptContext(N, r, p);
+    }
+
+    /**
+     * Wipe a context and return it to the pool. The context is discarded if pooling it
+     * would exceed the maximum pooled memory.
+     *
+     * @param context   Context obtained from {@link #acquire}.
+     */
+    public static void release(SCryptContext context) {
+        context.wipe();
+
+        synchronized (pool) {
+            long memory = context.memory();
+            if (pooledMemory + memory > maxPooledMemory) return;
+
+            String key = key(context.N, context.r, context.p);
+            ArrayDeque<SCryptContext> contexts = pool.get(key);
+            if (contexts == null) {
+                contexts = new ArrayDeque<SCryptContext>();
+                pool.put(key, contexts);
+            }
+            contexts.push(context);
+            pooledMemory += memory;
+        }
+    }
+
+    /**
+     * Release pooled contexts until at most {@code maxBytes} of scratch space remain pooled.
+     *
+     * @param maxBytes  Number of bytes that may remain pooled.
+     */
+    public static void trim(long maxBytes) {
+        synchronized (pool) {
+            Iterator<ArrayDeque<SCryptContext>> it = pool.values().iterator();
+            while (pooledMemory > maxBytes && it.hasNext()) {
+                ArrayDeque<SCryptContext> contexts = it.next();
+                while (pooledMemory > maxBytes && !contexts.isEmpty()) {
+                    pooledMemory -= contexts.pop().memory();
+                }
+                if (contexts.isEmpty()) it.remove();
+            }
+        }
+    }
+
+    /**
+     * Release all pooled contexts.
+     */
+    public static void trim() {
+        trim(0);
+    }
+
+    /**
+     * Set the maximum number of bytes of scratch space kept in the pool, releasing pooled
+     * contexts if necessary.
+     *
+     * @param maxBytes  Maximum pooled memory.
+     */
+    public static void setMaxPooledMemory(long maxBytes) {
+        synchronized (pool) {
+            maxPooledMemory = maxBytes;
+        }
+        trim(maxBytes);
+    }
+
+    /**
+     * Get the number of bytes of scratch space currently held by the pool.
+     *
+     * @return Pooled memory.
+     */
+    public static long getPooledMemory() {
+        synchronized (pool) {
+            return pooledMemory;
+        }
+    }
+
+    /**
+     * Derive a key using the scratch space of this context and a single worker.
+     *
+     * @param passwd    Password.
+     * @param salt      Salt.
+     * @param dkLen     Intended length of the derived key.
+     *
+     * @return The derived key.
+     *
+     * @throws GeneralSecurityException when HMAC_SHA256 is not available.
+     */
+    public byte[] scrypt(byte[] passwd, byte[] salt, int dkLen) throws GeneralSecurityException {
+        return SCrypt.scryptP(passwd, salt, dkLen, this, null, 1, MAX_VALUE);
+    }
+
+    /**
+     * Get the number of bytes of scratch space allocated by this context.
+     *
+     * @return Allocated memory.
+     */
+    public synchronized long memory() {
+        long memory = B.length + 4L * B32.length;
+        for (int i = 0; i < p; i++) {
+            if (V[i] != null) memory += 4L * (V[i].length + XY[i].length + X[i].length);
+        }
+        return memory;
+    }
+
+    /**
+     * Overwrite all buffers with zeros.
+     */
+    public synchronized void wipe() {
+        Arrays.fill(B, (byte) 0);
+        Arrays.fill(B32, 0);
+        for (int i = 0; i < p; i++) {
+            if (V[i] == null) continue;
+            Arrays.fill(V[i], 0);
+            Arrays.fill(XY[i], 0);
+            Arrays.fill(X[i], 0);
+        }
+    }
+
+    /**
+     * Get the number of bytes of scratch space a single worker needs.
+     *
+     * @return Per-worker memory.
+     */
+    long laneMemory() {
+        return 128L * r * N + 256L * r + 64;
+    }
+
+    int[] V(int worker) {
+        allocate(worker);
+        return V[worker];
+    }
+
+    int[] XY(int worker) {
+        allocate(worker);
+        return XY[worker];
+    }
+
+    int[] X(int worker) {
+        allocate(worker);
+        return X[worker];
+    }
+
+    private synchronized void allocate(int worker) {
+        if (V[worker] == null) {
+            V[worker]  = new int[32 * r * N];
+            XY[worker] = new int[64 * r];
+            X[worker]  = new int[16];
+        }
+    }
+
+    private static String key(int N, int r, int p) {
+        return N + ":" + r + ":" + p;
+    }
+}
@@ -0,0 +1,133 @@
+/*
+ * Copyright 2013 Matteo Hausner
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.lambdaworks.crypto;
+
+import java.security.GeneralSecurityException;
+
+/**
+ * {@link KdfEngine} implementations of the scrypt family backed by {@link SCrypt}. The
+ * engine created with the no-arg constructor, named {@code scrypt}, follows the backend
+ * chosen by {@link SCryptBackends}, the nested classes each pin one {@link SCryptBackend}.
+ */
+public class SCryptEngine implements KdfEngine {
+    public static final String FAMILY = "scrypt";
+
+    private final SCryptBackend backend;
+
+    /**
+     * Create an engine that uses the backend selected by {@link SCryptBackends}.
+     */
+    public SCryptEngine() {
+        this(null);
+    }
+
+    /**
+     * Create an engine that always uses the supplied backend.
+     *
+     * @param backend   Backend or null to follow {@link SCryptBackends}.
+     */
+    public SCryptEngine(SCryptBackend backend) {
+        this.backend = backend;
+    }
+
+    public String name() {
+        return backend == null ? FAMILY : FAMILY + "-" + backend.name().toLowerCase();
+    }
+
+    public String family() {
+        return FAMILY;
+    }
+
+    public boolean isAvailable() {
+        return backend == null || backend.available();
+    }
+
+    public long memory(int N, int r, int p) {
+        long lane = 128L * r * N + 256L * r + 64;
+
+        switch (backend()) {
+            case LANES:
+                return 128L * r * p + 2 * lane;
+            case PARALLEL:
+                return 128L * r * p + parallelism(p) * lane;
+            default:
+                return 128L * r * p + lane;
+        }
+    }
+
+    public int parallelism(int p) {
+        return backend() == SCryptBackend.PARALLEL ? Math.min(p, Runtime.getRuntime().availableProcessors()) : 1;
+    }
+
+    public boolean isThreadSafe() {
+        return true;
+    }
+
+    public byte[] derive(byte[] passwd, byte[] salt, int N, int r, int p, int dkLen) throws GeneralSecurityException {
+        return backend().scrypt(passwd, salt, N, r, p, dkLen);
+    }
+
+    public String toString() {
+        return name();
+    }
+
+    private SCryptBackend backend() {
+        return backend != null ? backend : SCryptBackends.backend();
+    }
+
+    /** The native C implementation, {@link SCrypt#scryptN}. */
+    public static class Native extends SCryptEngine {
+        public Native() {
+            super(SCryptBackend.NATIVE);
+        }
+    }
+
+    /** The pure Java reference implementation, {@link SCrypt#scryptJ}. */
+    public static class Java extends SCryptEngine {
+        public Java() {
+            super(SCryptBackend.JAVA);
+        }
+    }
+
+    /** The word oriented implementation, {@link SCrypt#scryptI}. */
+    public static class Int extends SCryptEngine {
+        public Int() {
+            super(SCryptBackend.INT);
+        }
+    }
+
+    /** The two lane implementation, {@link SCrypt#scryptL}. */
+    public static class Lanes extends SCryptEngine {
+        public Lanes() {
+            super(SCryptBackend.LANES);
+        }
+    }
+
+    /** The off-heap implementation, {@link SCrypt#scryptD}. */
+    public static class Direct extends SCryptEngine {
+        public Direct() {
+            super(SCryptBackend.DIRECT);
+        }
+    }
+
+    /** The multi-threaded implementation, {@link SCrypt#scryptP}. */
+    public static class Parallel extends SCryptEngine {
+        public Parallel() {
+            super(SCryptBackend.PARALLEL);
+        }
+    }
+}
@@ -5,8 +5,11 @@ package com.lambdaworks.crypto;
 import java.io.UnsupportedEncodingException;
 import java.security.GeneralSecurityException;
 import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.List;
 
 import static com.lambdaworks.codec.Base64.*;
+import static java.lang.Integer.MAX_VALUE;
 
 /**
  * Simple {@link SCrypt} interface for hashing passwords using the
@@ -28,6 +31,28 @@ import static com.lambdaworks.codec.Base64.*;
  * @author  Will Glozer
  */
 public class SCryptUtil {
+    private static SecureRandom random;
+
+    /**
+     * Set the source of salts for newly hashed passwords. By default a single
+     * {@link SecureRandom} is created on first use and shared by all calls.
+     *
+     * @param random    Random number generator.
+     */
+    public static synchronized void setRandom(SecureRandom random) {
+        SCryptUtil.random = random;
+    }
+
+    /**
+     * Get the source of salts for newly hashed passwords.
+     *
+     * @return The random number generator.
+     */
+    public static synchronized SecureRandom getRandom() {
+        if (random == null) random = new SecureRandom();
+        return random;
+    }
+
     /**
      * Hash the supplied plaintext password and generate output in the format described
      * in {@link SCryptUtil}.
@@ -40,11 +65,29 @@ public class SCryptUtil {
      * @return The hashed password.
      */
     public static String scrypt(String passwd, int N, int r, int p) {
+        return scrypt(passwd, N, r, p, KdfEngines.engine());
+    }
+
+    /**
+     * Hash the supplied plaintext password with a specific scrypt engine and generate
+     * output in the format described in {@link SCryptUtil}.
+     *
+     * @param passwd    Password.
+     * @param N         CPU cost parameter.
+     * @param r         Memory cost parameter.
+     * @param p         Parallelization parameter.
+     * @param engine    Engine of the scrypt family.
+     *
+     * @return The hashed password.
+     */
+    public static String scrypt(String passwd, int N, int r, int p, KdfEngine engine) {
+        checkFamily(engine);
+
         try {
             byte[] salt = new byte[16];
-            SecureRandom.getInstance("SHA1PRNG").nextBytes(salt);
+            getRandom().nextBytes(salt);
 
-            byte[] derived = SCrypt.scrypt(passwd.getBytes("UTF-8"), salt, N, r, p, 32);
+            byte[] derived = engine.derive(passwd.getBytes("UTF-8"), salt, N, r, p, 32);
 
             String params = Long.toString(log2(N) << 16L | r << 8 | p, 16);
 
@@ -57,7 +100,7 @@ public class SCryptUtil {
         } catch (UnsupportedEncodingException e) {
             throw new IllegalStateException("JVM doesn't support UTF-8?");
         } catch (GeneralSecurityException e) {
-            throw new IllegalStateException("JVM doesn't support SHA1PRNG or HMAC_SHA256?");
+            throw new IllegalStateException("JVM doesn't support HMAC_SHA256?");
         }
     }
 
@@ -70,35 +113,180 @@ public class SCryptUtil {
      * @return true if passwd matches hashed value.
      */
     public static boolean check(String passwd, String hashed) {
+        return check(passwd, hashed, KdfEngines.engine());
+    }
+
+    /**
+     * Compare the supplied plaintext password to a hashed password using a specific
+     * scrypt engine.
+     *
+     * @param   passwd  Plaintext password.
+     * @param   hashed  scrypt hashed password.
+     * @param   engine  Engine of the scrypt family.
+     *
+     * @return true if passwd matches hashed value.
+     */
+    public static boolean check(String passwd, String hashed, KdfEngine engine) {
+        checkFamily(engine);
+
         try {
-            String[] parts = hashed.split("\\$");
+            String[] parts = split(hashed);
+            SCryptBatch.Job job = job(passwd, parts);
 
-            if (parts.length != 5 || !parts[1].equals("s0")) {
-                throw new IllegalArgumentException("Invalid hashed value");
-            }
+            byte[] derived1 = engine.derive(job.passwd, job.salt, job.N, job.r, job.p, 32);
+
+            return matches(decode(parts[4].toCharArray()), derived1);
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException("JVM doesn't support UTF-8?");
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("JVM doesn't support HMAC_SHA256?");
+        }
+    }
 
-            long params = Long.parseLong(parts[2], 16);
-            byte[] salt = decode(parts[3].toCharArray());
-            byte[] derived0 = decode(parts[4].toCharArray());
+    /**
+     * Compare many plaintext passwords to their hashed passwords at once. The hashes are
+     * verified by a {@link SCryptBatch}, which groups them by their scrypt parameters and
+     * reuses scratch space and worker threads across all of them.
+     *
+     * @param   passwds Plaintext passwords.
+     * @param   hashed  scrypt hashed passwords, in the same order as {@code passwds}.
+     *
+     * @return For each password, true if it matches its hashed value.
+     */
+    public static boolean[] check(List<String> passwds, List<String> hashed) {
+        if (passwds.size() != hashed.size()) {
+            throw new IllegalArgumentException("Number of passwords and hashed values differ");
+        }
 
-            int N = (int) Math.pow(2, params >> 16 & 0xffff);
-            int r = (int) params >> 8 & 0xff;
-            int p = (int) params      & 0xff;
+        try {
+            List<SCryptBatch.Job> jobs = new ArrayList<SCryptBatch.Job>(hashed.size());
+            List<byte[]> derived0 = new ArrayList<byte[]>(hashed.size());
 
-            byte[] derived1 = SCrypt.scrypt(passwd.getBytes("UTF-8"), salt, N, r, p, 32);
+            for (int i = 0; i < hashed.size(); i++) {
+                String[] parts = split(hashed.get(i));
+                jobs.add(job(passwds.get(i), parts));
+                derived0.add(decode(parts[4].toCharArray()));
+            }
 
-            if (derived0.length != derived1.length) return false;
+            List<byte[]> derived1 = new SCryptBatch().derive(jobs);
 
-            int result = 0;
-            for (int i = 0; i < derived0.length; i++) {
-                result |= derived0[i] ^ derived1[i];
+            boolean[] results = new boolean[jobs.size()];
+            for (int i = 0; i < results.length; i++) {
+                results[i] = matches(derived0.get(i), derived1.get(i));
             }
-            return result == 0;
+            return results;
         } catch (UnsupportedEncodingException e) {
             throw new IllegalStateException("JVM doesn't support UTF-8?");
         } catch (GeneralSecurityException e) {
-            throw new IllegalStateException("JVM doesn't support SHA1PRNG or HMAC_SHA256?");
+            throw new IllegalStateException("JVM doesn't support HMAC_SHA256?");
+        }
+    }
+
+    /**
+     * Compare the supplied plaintext password to a hashed password on the calling thread,
+     * using pooled scratch space, and report the progress of the derivation.
+     *
+     * @param   passwd      Plaintext password.
+     * @param   hashed      scrypt hashed password.
+     * @param   listener    Listener notified about the progress, may be null.
+     * @param   token       Token used to cancel the derivation, may be null.
+     *
+     * @return true if passwd matches hashed value.
+     */
+    static boolean check(String passwd, String hashed, ProgressListener listener, CancellationToken token) {
+        try {
+            String[] parts = split(hashed);
+            SCryptBatch.Job job = job(passwd, parts);
+
+            SCryptContext context = SCryptContext.acquire(job.N, job.r, job.p);
+            try {
+                byte[] derived1 = SCrypt.scryptP(job.passwd, job.salt, 32, context, null, 1, MAX_VALUE, listener, token);
+                return matches(decode(parts[4].toCharArray()), derived1);
+            } finally {
+                SCryptContext.release(context);
+            }
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException("JVM doesn't support UTF-8?");
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("JVM doesn't support HMAC_SHA256?");
+        }
+    }
+
+    /**
+     * Get the number of bytes of scratch space {@link #check(String, String, ProgressListener, CancellationToken)}
+     * needs for a hashed password.
+     *
+     * @param   hashed  scrypt hashed password.
+     *
+     * @return Required memory.
+     *
+     * @throws IllegalArgumentException when hashed is not a valid scrypt hash.
+     */
+    static long memory(String hashed) {
+        int[] params = params(split(hashed));
+
+        long N = params[0];
+        long r = params[1];
+        long p = params[2];
+
+        return 128 * r * N + 256 * r + 64 + 256 * r * p;
+    }
+
+    private static void checkFamily(KdfEngine engine) {
+        if (!SCryptEngine.FAMILY.equals(engine.family())) {
+            throw new IllegalArgumentException("Not an scrypt engine: " + engine.name());
+        }
+    }
+
+    private static String[] split(String hashed) {
+        String[] parts = hashed.split("\\$");
+
+        if (parts.length != 5 || !parts[1].equals("s0")) {
+            throw new IllegalArgumentException("Invalid hashed value");
+        }
+
+        return parts;
+    }
+
+    private static SCryptBatch.Job job(String passwd, String[] parts) throws UnsupportedEncodingException {
+        int[] params = params(parts);
+        byte[] salt = decode(parts[3].toCharArray());
+
+        return new SCryptBatch.Job(passwd.getBytes("UTF-8"), salt, params[0], params[1], params[2], 32);
+    }
+
+    /**
+     * Parse N, r and p of a hashed password, rejecting values {@link SCrypt} would not
+     * accept before anything is derived or any memory is reserved for them.
+     *
+     * @param   parts   Hashed password split at '$'.
+     *
+     * @return N, r and p.
+     *
+     * @throws IllegalArgumentException when the parameters are out of range.
+     */
+    private static int[] params(String[] parts) {
+        long params = Long.parseLong(parts[2], 16);
+
+        int log2N = (int) (params >> 16 & 0xffff);
+        int r     = (int) (params >> 8  & 0xff);
+        int p     = (int) (params       & 0xff);
+
+        if (log2N < 1 || log2N > 30 || r < 1 || p < 1 || 1 << log2N > MAX_VALUE / 128 / r) {
+            throw new IllegalArgumentException("Invalid hashed value");
+        }
+
+        return new int[] { 1 << log2N, r, p };
+    }
+
+    private static boolean matches(byte[] derived0, byte[] derived1) {
+        if (derived0.length != derived1.length) return false;
+
+        int result = 0;
+        for (int i = 0; i < derived0.length; i++) {
+            result |= derived0[i] ^ derived1[i];
         }
+        return result == 0;
     }
 
     private static int log2(int n) {
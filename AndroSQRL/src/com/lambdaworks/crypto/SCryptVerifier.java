@@ -0,0 +1,340 @@
+/*
+ * Copyright 2013 Matteo Hausner
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.lambdaworks.crypto;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Verifies passwords against {@link SCryptUtil} hashes asynchronously on a bounded number
+ * of worker threads. Admission is controlled by memory rather than by request count: every
+ * check reserves the scratch space its scrypt parameters need from the moment it is
+ * submitted until it has finished, and a check that would exceed the memory budget, or the
+ * maximum queue depth, is rejected immediately with a {@link RejectedExecutionException}.
+ *
+ * Each check may have a deadline. A check whose deadline passes while it is queued is not
+ * started, a running one is cancelled at the next progress interval. Both fail with a
+ * {@link TimeoutException}.
+ */
+public class SCryptVerifier {
+    private final ThreadPoolExecutor executor;
+    private final long maxMemory;
+    private final int maxQueued;
+
+    private long reservedMemory;
+    private int queued;
+    private int running;
+    private long completed;
+    private long rejected;
+    private long expired;
+    private long failed;
+    private long totalLatency;
+    private long maxLatency;
+
+    /**
+     * Receives the outcome of a check on the worker thread that performed it.
+     */
+    public interface Callback {
+        /**
+         * Called when the check completed.
+         *
+         * @param matches   true if the password matches the hashed value.
+         */
+        void verified(boolean matches);
+
+        /**
+         * Called when the check failed, timed out or was cancelled.
+         *
+         * @param cause     The failure.
+         */
+        void failed(Throwable cause);
+    }
+
+    /**
+     * A snapshot of the verifier's counters.
+     */
+    public static class Metrics {
+        /** Checks waiting for a worker. */
+        public final int queued;
+        /** Checks being derived. */
+        public final int running;
+        /** Bytes of scratch space reserved by queued and running checks. */
+        public final long reservedMemory;
+        /** Checks that finished with a result. */
+        public final long completed;
+        /** Checks rejected at submission. */
+        public final long rejected;
+        /** Checks that missed their deadline. */
+        public final long expired;
+        /** Checks that failed otherwise or were cancelled. */
+        public final long failed;
+        /** Sum of the submission to completion latencies of completed checks, in nanoseconds. */
+        public final long totalLatency;
+        /** Largest submission to completion latency of a completed check, in nanoseconds. */
+        public final long maxLatency;
+
+        Metrics(int queued, int running, long reservedMemory, long completed, long rejected,
+                long expired, long failed, long totalLatency, long maxLatency) {
+            this.queued         = queued;
+            this.running        = running;
+            this.reservedMemory = reservedMemory;
+            this.completed      = completed;
+            this.rejected       = rejected;
+            this.expired        = expired;
+            this.failed         = failed;
+            this.totalLatency   = totalLatency;
+            this.maxLatency     = maxLatency;
+        }
+
+        /**
+         * Get the mean latency of completed checks.
+         *
+         * @return Mean latency in nanoseconds, 0 if no check has completed.
+         */
+        public long meanLatency() {
+            return completed == 0 ? 0 : totalLatency / completed;
+        }
+    }
+
+    /**
+     * Create a new verifier.
+     *
+     * @param threads   Maximum number of worker threads.
+     * @param maxMemory Maximum number of bytes of scratch space reserved by all checks.
+     * @param maxQueued Maximum number of checks waiting for a worker.
+     */
+    public SCryptVerifier(int threads, long maxMemory, int maxQueued) {
+        this.maxMemory = maxMemory;
+        this.maxQueued = maxQueued;
+
+        executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "scrypt-verifier-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Asynchronously compare a plaintext password to a hashed password without deadline.
+     *
+     * @param   passwd  Plaintext password.
+     * @param   hashed  scrypt hashed password.
+     *
+     * @return A future for the result, true if passwd matches hashed value.
+     *
+     * @throws RejectedExecutionException when the memory budget or the queue is exhausted.
+     */
+    public Future<Boolean> check(String passwd, String hashed) {
+        return check(passwd, hashed, 0, TimeUnit.NANOSECONDS, null);
+    }
+
+    /**
+     * Asynchronously compare a plaintext password to a hashed password.
+     *
+     * @param   passwd      Plaintext password.
+     * @param   hashed      scrypt hashed password.
+     * @param   timeout     Time from now after which the check is abandoned, 0 for none.
+     * @param   unit        Unit of the timeout.
+     * @param   callback    Callback notified about the outcome, may be null.
+     *
+     * @return A future for the result, true if passwd matches hashed value.
+     *
+     * @throws RejectedExecutionException when the memory budget or the queue is exhausted.
+     * @throws IllegalArgumentException when hashed is not a valid scrypt hash.
+     */
+    public Future<Boolean> check(String passwd, String hashed, long timeout, TimeUnit unit, Callback callback) {
+        long memory = SCryptUtil.memory(hashed);
+        long now = System.nanoTime();
+        long deadline = timeout > 0 ? now + unit.toNanos(timeout) : 0;
+
+        synchronized (this) {
+            if (queued >= maxQueued || reservedMemory + memory > maxMemory) {
+                rejected++;
+                throw new RejectedExecutionException(queued >= maxQueued ? "Too many queued checks"
+                                                                         : "Memory budget exhausted");
+            }
+            reservedMemory += memory;
+            queued++;
+        }
+
+        Check check = new Check(passwd, hashed, memory, now, deadline, callback);
+        try {
+            executor.execute(check);
+        } catch (RejectedExecutionException e) {
+            synchronized (this) {
+                queued--;
+                rejected++;
+            }
+            check.release();
+            throw e;
+        }
+        return check;
+    }
+
+    /**
+     * Get a snapshot of the counters.
+     *
+     * @return The metrics.
+     */
+    public synchronized Metrics metrics() {
+        return new Metrics(queued, running, reservedMemory, completed, rejected, expired, failed, totalLatency, maxLatency);
+    }
+
+    /**
+     * Stop accepting checks. Checks already submitted still run.
+     */
+    public void shutdown() {
+        executor.shutdown();
+    }
+
+    private class Check extends FutureTask<Boolean> {
+        private final long memory;
+        private final long submitted;
+        private final CancellationToken token;
+        private final Callback callback;
+        private final AtomicBoolean started  = new AtomicBoolean();
+        private final AtomicBoolean released = new AtomicBoolean();
+
+        Check(String passwd, String hashed, long memory, long submitted, long deadline, Callback callback) {
+            this(new CancellationToken(), passwd, hashed, memory, submitted, deadline, callback);
+        }
+
+        private Check(final CancellationToken token, final String passwd, final String hashed, long memory,
+                      long submitted, final long deadline, Callback callback) {
+            super(new Callable<Boolean>() {
+                public Boolean call() throws TimeoutException {
+                    if (deadline != 0 && System.nanoTime() - deadline > 0) {
+                        throw new TimeoutException("Deadline passed while queued");
+                    }
+
+                    ProgressListener listener = deadline == 0 ? null : new ProgressListener() {
+                        public void progress(long completed, long total) {
+                            if (System.nanoTime() - deadline > 0) token.cancel();
+                        }
+                    };
+
+                    try {
+                        return SCryptUtil.check(passwd, hashed, listener, token);
+                    } catch (CancellationException e) {
+                        if (deadline != 0 && System.nanoTime() - deadline > 0) {
+                            throw new TimeoutException("Deadline passed while running");
+                        }
+                        throw e;
+                    }
+                }
+            });
+            this.memory    = memory;
+            this.submitted = submitted;
+            this.token     = token;
+            this.callback  = callback;
+        }
+
+        @Override
+        public void run() {
+            // Whoever flips started first owns the reservation: a check cancelled while
+            // queued is released in done(), a started one when its derivation has ended
+            if (!started.compareAndSet(false, true)) return;
+
+            synchronized (SCryptVerifier.this) {
+                queued--;
+                running++;
+            }
+            try {
+                super.run();
+            } finally {
+                synchronized (SCryptVerifier.this) {
+                    running--;
+                }
+                release();
+                notifyCallback();
+            }
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            token.cancel();
+            return super.cancel(mayInterruptIfRunning);
+        }
+
+        @Override
+        protected void done() {
+            if (started.compareAndSet(false, true)) {
+                synchronized (SCryptVerifier.this) {
+                    queued--;
+                }
+                release();
+                notifyCallback();
+            }
+        }
+
+        void release() {
+            if (!released.compareAndSet(false, true)) return;
+
+            long latency = System.nanoTime() - submitted;
+            synchronized (SCryptVerifier.this) {
+                reservedMemory -= memory;
+
+                if (isCancelled()) {
+                    failed++;
+                } else if (isDone()) {
+                    try {
+                        get();
+                        completed++;
+                        totalLatency += latency;
+                        maxLatency = Math.max(maxLatency, latency);
+                    } catch (ExecutionException e) {
+                        if (e.getCause() instanceof TimeoutException) expired++;
+                        else failed++;
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            }
+        }
+
+        private void notifyCallback() {
+            if (callback == null) return;
+
+            try {
+                callback.verified(get());
+            } catch (ExecutionException e) {
+                callback.failed(e.getCause());
+            } catch (CancellationException e) {
+                callback.failed(e);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
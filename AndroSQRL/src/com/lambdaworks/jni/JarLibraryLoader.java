@@ -2,12 +2,19 @@
 
 package com.lambdaworks.jni;
 
+import com.lambdaworks.codec.Base64;
+
 import java.io.*;
 import java.security.CodeSource;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.jar.Attributes;
 import java.util.jar.JarEntry;
 import java.util.jar.JarFile;
+import java.util.zip.CRC32;
 
 /**
  * A native library loader that will extract and load a shared library contained in a jar.
@@ -17,18 +24,28 @@ import java.util.jar.JarFile;
  * Given a library path and name this loader looks for a native library with path
  * [libraryPath]/[arch]/[os]/lib[name].[ext]
  *
+ * By default the library is copied to a temp file on every load. When a cache directory
+ * is supplied, either directly or via the system property {@code com.lambdaworks.jni.cache},
+ * each library is extracted once to [cacheDir]/[arch]-[os]/[key]/lib[name].[ext]. The key
+ * is the SHA-256 digest from the manifest of a signed jar, otherwise the CRC-32 and size
+ * of the jar entry, so it is known without decompressing the entry. Later loads check
+ * the cached file against the same values. Cache directories are only accessible by the
+ * owner and cached files are read-only, so the checked file can't be swapped before it is
+ * loaded.
+ *
  * @author Will Glozer
  */
 public class JarLibraryLoader implements LibraryLoader {
     private final CodeSource codeSource;
     private final String libraryPath;
+    private final File cacheDir;
 
     /**
      * Initialize a new instance that looks for shared libraries located in the same jar
      * as this class and with a path starting with {@code lib}.
      */
     public JarLibraryLoader() {
-        this(JarLibraryLoader.class.getProtectionDomain().getCodeSource(), "lib");
+        this(JarLibraryLoader.class.getProtectionDomain().getCodeSource(), "lib", cacheDir());
     }
 
     /**
@@ -39,8 +56,22 @@ public class JarLibraryLoader implements LibraryLoader {
      * @param libraryPath   Path prefix of shared libraries.
      */
     public JarLibraryLoader(CodeSource codeSource, String libraryPath) {
+        this(codeSource, libraryPath, null);
+    }
+
+    /**
+     * Initialize a new instance that looks for shared libraries located in the specified
+     * directory of the supplied code source and keeps extracted libraries in a cache
+     * directory.
+     *
+     * @param codeSource    Code source containing shared libraries.
+     * @param libraryPath   Path prefix of shared libraries.
+     * @param cacheDir      Directory for extracted libraries, or null to use temp files.
+     */
+    public JarLibraryLoader(CodeSource codeSource, String libraryPath, File cacheDir) {
         this.codeSource  = codeSource;
         this.libraryPath = libraryPath;
+        this.cacheDir    = cacheDir;
     }
 
     /**
@@ -62,9 +93,13 @@ public class JarLibraryLoader implements LibraryLoader {
                     JarEntry entry = jar.getJarEntry(path);
                     if (entry == null) continue;
 
-                    File lib = extract(name, jar.getInputStream(entry));
-                    System.load(lib.getAbsolutePath());
-                    lib.delete();
+                    if (cacheDir != null) {
+                        loadCached(jar, entry, platform, path);
+                    } else {
+                        File lib = extract(name, jar.getInputStream(entry));
+                        System.load(lib.getAbsolutePath());
+                        lib.delete();
+                    }
 
                     loaded = true;
                     break;
@@ -111,6 +146,186 @@ public class JarLibraryLoader implements LibraryLoader {
         return lib;
     }
 
+    /**
+     * Load the cached copy of a jar entry, extracting it into the cache directory if no
+     * cached copy matching the entry exists yet.
+     *
+     * @param jar       Jar containing the entry.
+     * @param entry     Jar entry of the library.
+     * @param platform  Current platform.
+     * @param path      Path of the entry.
+     *
+     * @throws IOException when an IO error occurs or the extracted file cannot be verified.
+     */
+    private void loadCached(JarFile jar, JarEntry entry, Platform platform, String path) throws IOException {
+        byte[] digest = manifestDigest(jar, path);
+        String key;
+        if (digest != null) {
+            key = hex(digest);
+        } else if (entry.getCrc() != -1 && entry.getSize() != -1) {
+            key = Long.toHexString(entry.getCrc()) + "-" + entry.getSize();
+        } else {
+            digest = digest(jar.getInputStream(entry));
+            key = hex(digest);
+        }
+
+        File dir = new File(cacheDir, platform.arch + "-" + platform.os + File.separator + key);
+        File lib = new File(dir, path.substring(path.lastIndexOf('/') + 1));
+
+        if (lib.isFile() && matches(lib, entry, digest)) {
+            System.load(lib.getAbsolutePath());
+            return;
+        }
+
+        if (!dir.isDirectory() && !dir.mkdirs()) throw new IOException("Unable to create " + dir);
+        dir.setReadable(false, false);
+        dir.setWritable(false, false);
+        dir.setExecutable(false, false);
+        dir.setReadable(true, true);
+        dir.setWritable(true, true);
+        dir.setExecutable(true, true);
+
+        File tmp = File.createTempFile(lib.getName(), ".tmp", dir);
+        try {
+            copy(jar.getInputStream(entry), tmp);
+            tmp.setWritable(false, false);
+            if (!matches(tmp, entry, digest)) {
+                throw new IOException("Digest mismatch for " + path);
+            }
+
+            // Load the file that was just verified, renaming it keeps it loaded
+            System.load(tmp.getAbsolutePath());
+
+            if (!tmp.renameTo(lib)) {
+                lib.delete();
+                tmp.renameTo(lib);
+            }
+        } finally {
+            tmp.delete();
+        }
+    }
+
+    /**
+     * Check a file against a jar entry, by the SHA-256 digest if one is given or else by
+     * size and CRC-32.
+     *
+     * @param file      File to check.
+     * @param entry     Jar entry the file should be a copy of.
+     * @param digest    SHA-256 digest of the entry, may be null.
+     *
+     * @return true if the file matches.
+     *
+     * @throws IOException when an IO error occurs.
+     */
+    private static boolean matches(File file, JarEntry entry, byte[] digest) throws IOException {
+        if (digest != null) return Arrays.equals(digest, digest(new FileInputStream(file)));
+        return file.length() == entry.getSize() && crc(new FileInputStream(file)) == entry.getCrc();
+    }
+
+    /**
+     * Get the SHA-256 digest of a jar entry recorded in the manifest of a signed jar.
+     *
+     * @param jar   Jar containing the entry.
+     * @param path  Path of the entry.
+     *
+     * @return The digest or null if the manifest does not contain one.
+     *
+     * @throws IOException when an IO error occurs.
+     */
+    private static byte[] manifestDigest(JarFile jar, String path) throws IOException {
+        if (jar.getManifest() == null) return null;
+        Attributes attributes = jar.getManifest().getAttributes(path);
+        String digest = attributes != null ? attributes.getValue("SHA-256-Digest") : null;
+        return digest != null ? Base64.decode(digest.toCharArray()) : null;
+    }
+
+    /**
+     * Compute the SHA-256 digest of a stream and close it.
+     *
+     * @param is    Input stream.
+     *
+     * @return The digest.
+     *
+     * @throws IOException when an IO error occurs.
+     */
+    private static byte[] digest(InputStream is) throws IOException {
+        byte[] buf = new byte[8192];
+        int len;
+
+        try {
+            MessageDigest md = MessageDigest.getInstance("SHA-256");
+            while ((len = is.read(buf)) > 0) {
+                md.update(buf, 0, len);
+            }
+            return md.digest();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("JVM doesn't support SHA-256?", e);
+        } finally {
+            is.close();
+        }
+    }
+
+    /**
+     * Compute the CRC-32 of a stream and close it.
+     *
+     * @param is    Input stream.
+     *
+     * @return The CRC-32.
+     *
+     * @throws IOException when an IO error occurs.
+     */
+    private static long crc(InputStream is) throws IOException {
+        byte[] buf = new byte[8192];
+        int len;
+
+        try {
+            CRC32 crc = new CRC32();
+            while ((len = is.read(buf)) > 0) {
+                crc.update(buf, 0, len);
+            }
+            return crc.getValue();
+        } finally {
+            is.close();
+        }
+    }
+
+    /**
+     * Copy a stream to a file and close it.
+     *
+     * @param is    Input stream.
+     * @param file  Destination file.
+     *
+     * @throws IOException when an IO error occurs.
+     */
+    private static void copy(InputStream is, File file) throws IOException {
+        byte[] buf = new byte[8192];
+        int len;
+
+        FileOutputStream os = new FileOutputStream(file);
+        try {
+            while ((len = is.read(buf)) > 0) {
+                os.write(buf, 0, len);
+            }
+        } finally {
+            os.close();
+            is.close();
+        }
+    }
+
+    private static String hex(byte[] bytes) {
+        StringBuilder sb = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            sb.append(Character.forDigit((b >> 4) & 0xf, 16));
+            sb.append(Character.forDigit(b & 0xf, 16));
+        }
+        return sb.toString();
+    }
+
+    private static File cacheDir() {
+        String dir = System.getProperty("com.lambdaworks.jni.cache");
+        return dir != null ? new File(dir) : null;
+    }
+
     /**
      * Generate a list of candidate libraries for the supplied library name and suitable
      * for the current platform.
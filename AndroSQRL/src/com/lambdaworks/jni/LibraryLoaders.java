@@ -8,7 +8,8 @@ package com.lambdaworks.jni;
  *
  * The system property {@code com.lambdaworks.jni.loader} may be used to override
  * loader auto-detection, or to disable loading native libraries entirely via use
- * of the nil loader.
+ * of the nil loader. The system property {@code com.lambdaworks.jni.cache} names a
+ * directory in which the jar loader keeps extracted libraries between runs.
  *
  * @author Will Glozer
  */
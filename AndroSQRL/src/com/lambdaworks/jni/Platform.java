@@ -38,6 +38,8 @@ public class Platform {
         }
     }
 
+    private static Platform detected;
+
     public final Arch arch;
     public final OS os;
 
@@ -47,13 +49,18 @@ public class Platform {
     }
 
     /**
-     * Attempt to detect the current platform.
+     * Attempt to detect the current platform. The result is remembered for later calls.
      *
      * @return The current platform.
      *
      * @throws UnsupportedPlatformException if the platform cannot be detected.
      */
-    public static Platform detect() throws UnsupportedPlatformException {
+    public static synchronized Platform detect() throws UnsupportedPlatformException {
+        if (detected == null) detected = detectPlatform();
+        return detected;
+    }
+
+    private static Platform detectPlatform() throws UnsupportedPlatformException {
         String osArch = getProperty("os.arch");
         String osName = getProperty("os.name");
 
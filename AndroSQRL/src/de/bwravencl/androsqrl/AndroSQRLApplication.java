@@ -0,0 +1,126 @@
+/*
+ * Copyright 2013 Matteo Hausner
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.bwravencl.androsqrl;
+
+import java.io.File;
+
+import com.lambdaworks.crypto.SCryptBackend;
+import com.lambdaworks.crypto.SCryptBackends;
+import com.lambdaworks.crypto.SCryptContext;
+import com.lambdaworks.crypto.SCryptUtil;
+
+import de.bwravencl.androsqrl.model.QuickPass;
+import de.bwravencl.androsqrl.utils.Fortuna;
+import de.bwravencl.androsqrl.utils.ScryptCalibration;
+
+import android.app.Application;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.SharedPreferences;
+import android.content.pm.PackageManager.NameNotFoundException;
+import android.os.Build;
+import android.preference.PreferenceManager;
+import android.util.Log;
+
+public class AndroSQRLApplication extends Application {
+
+	public static final String PREFERENCES_SCRYPT_BACKEND = "PREFERENCES_SCRYPT_BACKEND";
+	public static final String PREFERENCES_SCRYPT_BACKEND_DEVICE = "PREFERENCES_SCRYPT_BACKEND_DEVICE";
+
+	private static final String TAG = "AndroSQRL";
+
+	@Override
+	public void onCreate() {
+		super.onCreate();
+
+		// All random numbers come from one generator, which carries its state
+		// across restarts in a seed file
+		Fortuna.getInstance().useSeedFile(
+				new File(getFilesDir(), Fortuna.SEED_FILE_NAME));
+		SCryptUtil.setRandom(Fortuna.getSecureRandom());
+
+		// Load the native library and pick the fastest scrypt engine before
+		// the user gets to unlock an identity. The benchmark only runs again
+		// after an update of the app or the system.
+		final SharedPreferences sharedPreferences = PreferenceManager
+				.getDefaultSharedPreferences(this);
+		final String device = getDevice();
+		SCryptBackend remembered = null;
+		if (device.equals(sharedPreferences.getString(
+				PREFERENCES_SCRYPT_BACKEND_DEVICE, null)))
+			try {
+				remembered = SCryptBackend.valueOf(sharedPreferences.getString(
+						PREFERENCES_SCRYPT_BACKEND, null));
+			} catch (RuntimeException e) {
+				e.printStackTrace();
+			}
+		SCryptBackends.preload(remembered, new SCryptBackends.Listener() {
+
+			@Override
+			public void selected(SCryptBackend backend, String reason) {
+				Log.i(TAG, "Using scrypt backend " + backend + ": " + reason);
+
+				sharedPreferences.edit()
+						.putString(PREFERENCES_SCRYPT_BACKEND, backend.name())
+						.putString(PREFERENCES_SCRYPT_BACKEND_DEVICE, device)
+						.commit();
+			}
+		});
+		ScryptCalibration.calibrateInBackground(this);
+
+		// A device left alone with the screen off must require the full
+		// password again
+		registerReceiver(new BroadcastReceiver() {
+
+			@Override
+			public void onReceive(Context context, Intent intent) {
+				QuickPass.clear();
+			}
+		}, new IntentFilter(Intent.ACTION_SCREEN_OFF));
+	}
+
+	// Identifies both the app version and the system build
+	private String getDevice() {
+		int versionCode = 0;
+		try {
+			versionCode = getPackageManager().getPackageInfo(getPackageName(),
+					0).versionCode;
+		} catch (NameNotFoundException e) {
+			e.printStackTrace();
+		}
+
+		return versionCode + "/" + Build.FINGERPRINT;
+	}
+
+	@Override
+	public void onTrimMemory(int level) {
+		super.onTrimMemory(level);
+
+		// Pooled scrypt scratch space is only needed while the user unlocks
+		// an identity, so it can be dropped whenever the system asks for it
+		SCryptContext.trim();
+	}
+
+	@Override
+	public void onLowMemory() {
+		super.onLowMemory();
+
+		SCryptContext.trim();
+	}
+}
@@ -18,28 +18,24 @@ package de.bwravencl.androsqrl;
 
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.security.InvalidKeyException;
-import java.security.NoSuchAlgorithmException;
+import java.security.GeneralSecurityException;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Timer;
 import java.util.TimerTask;
 
-import javax.crypto.Mac;
-import javax.crypto.spec.SecretKeySpec;
-
 import org.apache.http.client.ClientProtocolException;
 import org.apache.http.client.HttpClient;
 import org.apache.http.client.entity.UrlEncodedFormEntity;
 import org.apache.http.client.methods.HttpPost;
 
-import com.github.dazoe.android.Ed25519;
-
 import de.bwravencl.androsqrl.R;
 
 import de.bwravencl.androsqrl.exception.InvalidUrlException;
 import de.bwravencl.androsqrl.model.Identity;
 import de.bwravencl.androsqrl.model.AuthRequest;
+import de.bwravencl.androsqrl.model.QuickPass;
+import de.bwravencl.androsqrl.utils.SiteKeyCache;
 import de.bwravencl.androsqrl.utils.ZXOrientationFixCallback;
 import eu.livotov.zxscan.ZXScanHelper;
 
@@ -125,6 +121,11 @@ public class AuthenticateActivity extends Activity {
 	@Override
 	public void finish() {
 		super.finish();
+
+		// The session only outlasts this activity while the quick pass can
+		// unlock the identity again
+		if (!QuickPass.isArmed(identity.getName()))
+			SiteKeyCache.clear();
 		identity.clearMasterKey();
 	}
 
@@ -185,17 +186,19 @@ public class AuthenticateActivity extends Activity {
 		protected String[] doInBackground(String... params) {
 			final String url = params[0];
 
-			final byte[] privateKey = getPrivateKey(authRequest.getDomain(),
-					identity.getMasterkey());
-
 			byte[] publicKey = null;
 			byte[] signature = null;
 
 			try {
-				publicKey = Ed25519.PublicKeyFromPrivateKey(privateKey);
-				signature = Ed25519.Sign(url.getBytes(), privateKey);
-			} catch (Exception e) {
+				// The keypair of a site stays cached for the session
+				final SiteKeyCache.SiteKey siteKey = SiteKeyCache.get(
+						identity.getMasterkey(), authRequest.getDomain());
+				publicKey = siteKey.getPublicKey();
+				signature = siteKey.sign(url.getBytes());
+			} catch (GeneralSecurityException e) {
+				// Also thrown when the session ended while signing
 				e.printStackTrace();
+				return null;
 			}
 
 			final String publicKeyString = Base64.encodeToString(publicKey,
@@ -208,6 +211,14 @@ public class AuthenticateActivity extends Activity {
 
 		@Override
 		protected void onPostExecute(String[] result) {
+			if (result == null) {
+				Toast.makeText(AuthenticateActivity.this,
+						"Could not sign the login request!", Toast.LENGTH_LONG)
+						.show();
+				finish();
+				return;
+			}
+
 			publicKey = result[0];
 			signature = result[1];
 
@@ -215,25 +226,6 @@ public class AuthenticateActivity extends Activity {
 					authRequest.getSchemelessUrl(), signature, publicKey);
 		}
 
-		// Create the private key from URL and secret key
-		private byte[] getPrivateKey(String domain, byte[] key) {
-			byte[] privateKey = null;
-
-			try {
-				final SecretKeySpec secretKeySpec = new SecretKeySpec(key,
-						"HmacSHA256");
-				final Mac mac = Mac.getInstance("HmacSHA256");
-				mac.init(secretKeySpec);
-				privateKey = mac.doFinal(domain.getBytes());
-			} catch (InvalidKeyException e) {
-				e.printStackTrace();
-			} catch (NoSuchAlgorithmException e) {
-				e.printStackTrace();
-			}
-
-			return privateKey;
-		}
-
 		// Send signature and pubkey to server
 		private void postData(String url, String message, String signature,
 				String publicKey) {
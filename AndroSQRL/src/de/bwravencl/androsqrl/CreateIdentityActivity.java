@@ -19,11 +19,14 @@ package de.bwravencl.androsqrl;
 import de.bwravencl.androsqrl.R;
 
 import de.bwravencl.androsqrl.model.Identity;
+import de.bwravencl.androsqrl.utils.ScryptCalibration;
 
 import android.app.Activity;
 import android.app.AlertDialog;
+import android.app.ProgressDialog;
 import android.content.DialogInterface;
 import android.content.Intent;
+import android.os.AsyncTask;
 import android.os.Bundle;
 import android.view.View;
 import android.widget.Button;
@@ -151,21 +154,19 @@ public class CreateIdentityActivity extends Activity {
 					extraEntropyBytes = data
 							.getByteArrayExtra(EntropyCameraActivity.EXTRA_ENTROPY_BYTES);
 
-				final Identity identity = new Identity(name, password,
-						extraEntropyBytes);
-				try {
-					identity.save(this);
-					setResult(RESULT_OK);
-				} catch (Exception e) {
-					e.printStackTrace();
-				}
-				finish();
+				new CreateIdentityTask(name, password, extraEntropyBytes)
+						.execute();
 			} else {
 				final AlertDialog alertDialog = new AlertDialog.Builder(
 						CreateIdentityActivity.this).create();
 				alertDialog.setCancelable(false);
-				alertDialog
-						.setMessage("Entropy generation sequence aborted.\n\nThe new identity was not stored.");
+				if (resultCode == EntropyCameraActivity.RESULT_HEALTH_TEST_FAILED
+						|| resultCode == EntropyCameraActivity.RESULT_NOT_ENOUGH_ENTROPY)
+					alertDialog
+							.setMessage("The camera does not deliver enough noise, the lens may be covered or the scene too dark.\n\nThe new identity was not stored.");
+				else
+					alertDialog
+							.setMessage("Entropy generation sequence aborted.\n\nThe new identity was not stored.");
 				alertDialog.setButton(AlertDialog.BUTTON_NEUTRAL,
 						getString(android.R.string.ok),
 						new DialogInterface.OnClickListener() {
@@ -178,4 +179,54 @@ public class CreateIdentityActivity extends Activity {
 				alertDialog.show();
 			}
 	}
+
+	// Deriving the verifier with the calibrated scrypt parameters takes about
+	// as long as an unlock, so it must not run on the UI thread
+	private class CreateIdentityTask extends AsyncTask<Void, Void, Identity> {
+
+		private final String name;
+		private final String password;
+		private final byte[] extraEntropyBytes;
+
+		private ProgressDialog progressDialog;
+
+		public CreateIdentityTask(String name, String password,
+				byte[] extraEntropyBytes) {
+			this.name = name;
+			this.password = password;
+			this.extraEntropyBytes = extraEntropyBytes;
+		}
+
+		@Override
+		protected void onPreExecute() {
+			progressDialog = new ProgressDialog(CreateIdentityActivity.this);
+			progressDialog.setMessage("Creating the new identity...");
+			progressDialog.setCancelable(false);
+			progressDialog.show();
+		}
+
+		@Override
+		protected Identity doInBackground(Void... params) {
+			final int[] scryptParameters = ScryptCalibration
+					.getParameters(CreateIdentityActivity.this);
+
+			return new Identity(name, password, extraEntropyBytes,
+					scryptParameters[0], scryptParameters[1],
+					scryptParameters[2]);
+		}
+
+		@Override
+		protected void onPostExecute(Identity identity) {
+			progressDialog.dismiss();
+
+			// Saved here, the registry notifies its listeners on this thread
+			try {
+				identity.save(CreateIdentityActivity.this);
+				setResult(RESULT_OK);
+			} catch (Exception e) {
+				e.printStackTrace();
+			}
+			finish();
+		}
+	}
 }
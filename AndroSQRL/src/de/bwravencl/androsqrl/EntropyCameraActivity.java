@@ -23,10 +23,14 @@ import java.util.TimerTask;
 import de.bwravencl.androsqrl.R;
 
 import de.bwravencl.androsqrl.utils.Crypto;
+import de.bwravencl.androsqrl.utils.EntropyAccumulator;
+import de.bwravencl.androsqrl.utils.EntropyEstimator;
+import de.bwravencl.androsqrl.utils.Fortuna;
 
 import android.app.Activity;
 import android.content.Intent;
 import android.content.pm.PackageManager;
+import android.graphics.ImageFormat;
 import android.graphics.SurfaceTexture;
 import android.hardware.Camera;
 import android.os.Bundle;
@@ -38,20 +42,36 @@ public class EntropyCameraActivity extends Activity implements
 
 	public static final String EXTRA_ENTROPY_BYTES = "EXTRA_ENTROPY_BYTES";
 	public static final String EXTRA_FRAMES_CAPTURED = "EXTRA_FRAMES_CAPTURED";
+	public static final String EXTRA_ENTROPY_BITS = "EXTRA_ENTROPY_BITS";
 
 	public static final int RESULT_NO_CAMERA = RESULT_FIRST_USER;
+	public static final int RESULT_HEALTH_TEST_FAILED = RESULT_FIRST_USER + 1;
+	public static final int RESULT_NOT_ENOUGH_ENTROPY = RESULT_FIRST_USER + 2;
 
-	public static final int CAPTURED_DATA_MAXLENGTH = 262144; // 256 kB
+	// Capture stops early once this much entropy has been credited, reaching
+	// it within CAPTURE_DURATION is required
+	public static final int TARGET_ENTROPY_BITS = EntropyAccumulator.SEED_LENGTH * 8;
 
+	// Maximum capture duration
 	public static final long CAPTURE_DURATION = 5000L;
 
+	// Preview buffers handed to the camera, recycled after every frame
+	public static final int NUM_PREVIEW_BUFFERS = 3;
+
 	private Camera camera;
 
 	private TextureView textureView;
 
-	private byte[] capturedData;
+	private EntropyAccumulator entropyAccumulator;
+
+	private EntropyEstimator entropyEstimator;
+
+	private Timer captureTimer;
+
+	private boolean captureStopped = false;
 
-	private int framesCaptured = 0;
+	// Number of leading bytes of a preview frame that hold the luma plane
+	private int lumaLength;
 
 	private boolean recording = false;
 
@@ -96,47 +116,118 @@ public class EntropyCameraActivity extends Activity implements
 	}
 
 	public void startCapture(long duration) {
-		capturedData = null;
-		framesCaptured = 0;
+		entropyAccumulator = new EntropyAccumulator();
+		entropyEstimator = new EntropyEstimator();
+		captureStopped = false;
 		recording = true;
 
 		final TimerTask timerTask = new TimerTask() {
 
 			@Override
 			public void run() {
-				EntropyCameraActivity.this.stopCapture();
+				// Preview frames arrive on the UI thread, so capture is
+				// stopped there as well
+				runOnUiThread(new Runnable() {
+
+					@Override
+					public void run() {
+						stopCapture();
+					}
+				});
 			}
 		};
-		new Timer().schedule(timerTask, duration);
+		captureTimer = new Timer();
+		captureTimer.schedule(timerTask, duration);
 	}
 
+	// Called on the UI thread when the maximum duration is over or once the
+	// target is reached
 	public void stopCapture() {
+		if (captureStopped)
+			return;
+		captureStopped = true;
 		recording = false;
+		captureTimer.cancel();
+
+		// The accumulator ignores frames that arrive after the seed has been
+		// taken
+		final byte[] seed = entropyAccumulator.finish();
+		final int framesCaptured = entropyAccumulator.getFramesAdded();
+
+		// Credit the captured frames to the shared generator as well, not
+		// only to the identity that is being created
+		Fortuna.getInstance().addRandomEvent(Fortuna.SOURCE_CAMERA, seed);
+
+		// A dark sensor may pass the health tests without being credited
+		// much, the seed must not be used then
+		final int entropyBits = (int) entropyEstimator.getCreditedBits();
+		if (entropyBits < TARGET_ENTROPY_BITS) {
+			Crypto.zeroByte(seed);
+			setResult(RESULT_NOT_ENOUGH_ENTROPY);
+		} else {
+			final Intent data = new Intent();
+			data.putExtra(EXTRA_ENTROPY_BYTES, seed);
+			data.putExtra(EXTRA_FRAMES_CAPTURED, framesCaptured);
+			data.putExtra(EXTRA_ENTROPY_BITS, entropyBits);
+			setResult(RESULT_OK, data);
+		}
+
+		finish();
+	}
 
-		// Limit the max length, to ensure we don't hit this issue:
-		// https://code.google.com/p/android/issues/detail?id=5878
-		if (capturedData.length > CAPTURED_DATA_MAXLENGTH)
-			capturedData = Crypto.subByte(capturedData, 0,
-					CAPTURED_DATA_MAXLENGTH);
+	// Called on the UI thread when a health test fails, the frames are not
+	// used at all
+	public void failCapture() {
+		if (captureStopped)
+			return;
+		captureStopped = true;
+		recording = false;
+		captureTimer.cancel();
 
-		final Intent data = new Intent();
-		data.putExtra(EXTRA_ENTROPY_BYTES, capturedData);
-		data.putExtra(EXTRA_FRAMES_CAPTURED, framesCaptured);
-		setResult(RESULT_OK, data);
+		entropyAccumulator.finish();
 
+		setResult(RESULT_HEALTH_TEST_FAILED);
 		finish();
 	}
 
 	@Override
 	public void onPreviewFrame(byte[] data, Camera camera) {
 		if (recording) {
-			framesCaptured++;
+			entropyAccumulator.addFrame(data, lumaLength);
+
+			if (!entropyEstimator.addFrame(data, lumaLength))
+				failCapture();
+			else if (entropyEstimator.getCreditedBits() >= TARGET_ENTROPY_BITS)
+				stopCapture();
+		}
 
-			if (capturedData == null)
-				capturedData = data;
-			else
-				capturedData = Crypto.xor(capturedData, data);
+		// Hand the buffer back so the camera can fill it again
+		camera.addCallbackBuffer(data);
+	}
+
+	// Preallocates the preview buffers, only the luma plane at the start of
+	// each frame is used, the chroma planes add little entropy
+	private void allocatePreviewBuffers() {
+		final Camera.Parameters parameters = camera.getParameters();
+		final Camera.Size previewSize = parameters.getPreviewSize();
+		final int previewFormat = parameters.getPreviewFormat();
+
+		final int bufferSize;
+		if (previewFormat == ImageFormat.YV12) {
+			// YV12 rows are aligned to 16 bytes, see
+			// Camera.Parameters.setPreviewFormat
+			final int lumaStride = (previewSize.width + 15) / 16 * 16;
+			final int chromaStride = (lumaStride / 2 + 15) / 16 * 16;
+			lumaLength = lumaStride * previewSize.height;
+			bufferSize = lumaLength + chromaStride * previewSize.height;
+		} else {
+			lumaLength = previewSize.width * previewSize.height;
+			bufferSize = lumaLength
+					* ImageFormat.getBitsPerPixel(previewFormat) / 8;
 		}
+
+		for (int i = 0; i < NUM_PREVIEW_BUFFERS; i++)
+			camera.addCallbackBuffer(new byte[bufferSize]);
 	}
 
 	@Override
@@ -149,7 +240,8 @@ public class EntropyCameraActivity extends Activity implements
 		} catch (IOException e) {
 			e.printStackTrace();
 		}
-		camera.setPreviewCallback(this);
+		allocatePreviewBuffers();
+		camera.setPreviewCallbackWithBuffer(this);
 		camera.setDisplayOrientation(90); // TODO: this value should probably
 											// not be hardcoded
 
@@ -159,7 +251,7 @@ public class EntropyCameraActivity extends Activity implements
 	@Override
 	public boolean onSurfaceTextureDestroyed(SurfaceTexture surface) {
 		camera.stopPreview();
-		camera.setPreviewCallback(null);
+		camera.setPreviewCallbackWithBuffer(null);
 		camera.release();
 
 		return true;
@@ -20,11 +20,14 @@ import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.util.concurrent.CancellationException;
 
 import com.google.zxing.BarcodeFormat;
 import com.google.zxing.WriterException;
 import com.google.zxing.client.android.Contents;
 import com.google.zxing.client.android.encode.QRCodeEncoder;
+import com.lambdaworks.crypto.CancellationToken;
+import com.lambdaworks.crypto.ProgressListener;
 
 import de.bwravencl.androsqrl.R;
 import de.bwravencl.androsqrl.model.Identity;
@@ -56,6 +59,8 @@ public class ExportIdentityActivity extends Activity {
 
 	private Bitmap bitmapQRCode;
 
+	private final CancellationToken cancellationToken = new CancellationToken();
+
 	@Override
 	protected void onCreate(Bundle savedInstanceState) {
 		super.onCreate(savedInstanceState);
@@ -111,6 +116,14 @@ public class ExportIdentityActivity extends Activity {
 		identity.clearMasterKey();
 	}
 
+	@Override
+	protected void onDestroy() {
+		super.onDestroy();
+
+		// Abort a running export if the user leaves this screen
+		cancellationToken.cancel();
+	}
+
 	private void doSaveToSDCard() {
 		if (bitmapQRCode != null) {
 			final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
@@ -154,18 +167,34 @@ public class ExportIdentityActivity extends Activity {
 		}
 	}
 
-	private class ExportTask extends AsyncTask<Object, Void, String> {
+	private class ExportTask extends AsyncTask<Object, Integer, String> {
 
 		@Override
 		protected String doInBackground(Object... params) {
 			final Identity identity = (Identity) params[0];
 			final String password = (String) params[1];
 
-			return identity.getExportString(password);
+			try {
+				return identity.getExportString(password,
+						new ProgressListener() {
+
+							@Override
+							public void progress(long completed, long total) {
+								publishProgress((int) (completed * 100L / total));
+							}
+						}, cancellationToken);
+			} catch (CancellationException e) {
+				return null;
+			}
 		}
 
 		@Override
 		protected void onPostExecute(String result) {
+			if (result == null) {
+				finish();
+				return;
+			}
+
 			final Display display = getWindowManager().getDefaultDisplay();
 			final Point size = new Point();
 			display.getSize(size);
@@ -194,7 +223,8 @@ public class ExportIdentityActivity extends Activity {
 		}
 
 		@Override
-		protected void onProgressUpdate(Void... values) {
+		protected void onProgressUpdate(Integer... values) {
+			progressBar.setProgress(values[0]);
 		}
 	}
 }
@@ -22,33 +22,45 @@ import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.security.GeneralSecurityException;
 import java.util.ArrayList;
-import java.util.Collections;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+
+import com.lambdaworks.crypto.CancellationToken;
+import com.lambdaworks.crypto.ProgressListener;
 
 import de.bwravencl.androsqrl.R;
 
 import de.bwravencl.androsqrl.exception.DuplicateIdentityNameException;
+import de.bwravencl.androsqrl.exception.InvalidIdentityNameException;
 import de.bwravencl.androsqrl.exception.InvalidImportString;
 import de.bwravencl.androsqrl.exception.WrongPasswordException;
 import de.bwravencl.androsqrl.model.Identity;
+import de.bwravencl.androsqrl.model.IdentityRegistry;
+import de.bwravencl.androsqrl.model.QuickPass;
+import de.bwravencl.androsqrl.utils.ScryptCalibration;
 import de.bwravencl.androsqrl.utils.ZXOrientationFixCallback;
 import eu.livotov.zxscan.ZXScanHelper;
 
 import android.app.Activity;
 import android.app.AlertDialog;
+import android.app.ProgressDialog;
 import android.content.DialogInterface;
 import android.content.Intent;
 import android.content.SharedPreferences;
 import android.content.pm.PackageInfo;
 import android.content.pm.PackageManager.NameNotFoundException;
+import android.os.AsyncTask;
 import android.os.Bundle;
 import android.preference.PreferenceManager;
+import android.text.TextUtils;
 import android.view.KeyEvent;
 import android.view.LayoutInflater;
 import android.view.Menu;
 import android.view.MenuInflater;
 import android.view.MenuItem;
 import android.view.View;
+import android.widget.AdapterView;
 import android.widget.ArrayAdapter;
 import android.widget.Button;
 import android.widget.EditText;
@@ -73,12 +85,35 @@ public class MainActivity extends Activity {
 	private EditText editTextPassword;
 	private Button buttonLogin;
 
+	// Refreshes the spinner whenever an identity is added, renamed or deleted,
+	// also by other activities
+	private final IdentityRegistry.Listener identityRegistryListener = new IdentityRegistry.Listener() {
+
+		@Override
+		public void onIdentitiesChanged(IdentityRegistry.Snapshot snapshot) {
+			updateSpinner(snapshot);
+		}
+	};
+
 	@Override
 	protected void onCreate(Bundle savedInstanceState) {
 		super.onCreate(savedInstanceState);
 		setContentView(R.layout.activity_main);
 
 		spinnerIdentity = (Spinner) findViewById(R.id.spinnerIdentity);
+		spinnerIdentity
+				.setOnItemSelectedListener(new AdapterView.OnItemSelectedListener() {
+					@Override
+					public void onItemSelected(AdapterView<?> parent,
+							View view, int position, long id) {
+						updatePasswordHint();
+					}
+
+					@Override
+					public void onNothingSelected(AdapterView<?> parent) {
+						updatePasswordHint();
+					}
+				});
 		editTextPassword = (EditText) findViewById(R.id.editTextPassword);
 		editTextPassword
 				.setOnEditorActionListener(new OnEditorActionListener() {
@@ -140,7 +175,47 @@ public class MainActivity extends Activity {
 			builder.show();
 		}
 
-		initSpinner();
+		final IdentityRegistry identityRegistry = IdentityRegistry
+				.getInstance(this);
+		identityRegistry.addListener(identityRegistryListener);
+		updateSpinner(identityRegistry.getSnapshot());
+
+		// Identities of an earlier version that don't fit into the identity
+		// store would otherwise disappear without notice
+		final Set<String> unmigratedNames = identityRegistry
+				.getUnmigratedNames();
+		if (savedInstanceState == null && !unmigratedNames.isEmpty()) {
+			final AlertDialog alertDialog = new AlertDialog.Builder(this)
+					.create();
+			alertDialog
+					.setMessage("The following identities could not be taken over from the previous version and can't be used:\n\n"
+							+ TextUtils.join("\n", unmigratedNames));
+			alertDialog.setButton(AlertDialog.BUTTON_NEUTRAL,
+					getString(android.R.string.ok),
+					new DialogInterface.OnClickListener() {
+						@Override
+						public void onClick(DialogInterface dialog, int which) {
+							dialog.dismiss();
+						}
+					});
+			alertDialog.show();
+		}
+	}
+
+	@Override
+	protected void onResume() {
+		super.onResume();
+
+		// The quick pass may have timed out or been wiped while paused
+		updatePasswordHint();
+	}
+
+	@Override
+	protected void onDestroy() {
+		IdentityRegistry.getInstance(this).removeListener(
+				identityRegistryListener);
+
+		super.onDestroy();
 	}
 
 	@Override
@@ -191,10 +266,9 @@ public class MainActivity extends Activity {
 	@Override
 	protected void onActivityResult(int requestCode, int resultCode, Intent data) {
 		if (requestCode == REQUEST_CREATE_IDENTITY) {
-			if (Identity.loadIdentityNames(this).size() == 0)
+			// The spinner was already updated by the registry listener
+			if (Identity.getNumIdentities(this) == 0)
 				restartActivity();
-			else
-				initSpinner();
 		} else if (requestCode == REQUEST_SCAN_QR_CODE_FOR_IMPORT) {
 			if (resultCode == RESULT_OK) {
 				final String importString = ZXScanHelper.getScannedCode(data);
@@ -218,13 +292,9 @@ public class MainActivity extends Activity {
 			finish();
 	}
 
-	private void initSpinner() {
+	private void updateSpinner(IdentityRegistry.Snapshot snapshot) {
 		identityNames.clear();
-
-		for (String n : Identity.loadIdentityNames(this))
-			identityNames.add(n);
-
-		Collections.sort(identityNames);
+		identityNames.addAll(snapshot.getNames());
 
 		if (identityNames.size() < 2)
 			spinnerIdentity.setEnabled(false);
@@ -259,7 +329,32 @@ public class MainActivity extends Activity {
 		final String password = editTextPassword.getText().toString();
 		editTextPassword.setText(null);
 
-		final Identity identity = loadIdentity(name, password);
+		final Identity identity;
+		if (QuickPass.isArmed(name)
+				&& password.length() == QuickPass.QUICK_PASS_LENGTH) {
+			identity = QuickPass.unlock(this, password);
+			updatePasswordHint();
+
+			if (identity == null) {
+				Toast.makeText(
+						this,
+						"You entered a wrong quick pass!\nPlease enter your full password.",
+						Toast.LENGTH_LONG).show();
+				return;
+			}
+		} else {
+			identity = loadIdentity(name, password);
+
+			if (identity != null) {
+				final SharedPreferences sharedPreferences = PreferenceManager
+						.getDefaultSharedPreferences(this);
+				final long quickPassTimeout = Long.parseLong(sharedPreferences
+						.getString(QuickPass.PREFERENCES_QUICK_PASS_TIMEOUT,
+								String.valueOf(QuickPass.DEFAULT_QUICK_PASS_TIMEOUT)));
+				QuickPass.arm(identity, password, quickPassTimeout);
+				updatePasswordHint();
+			}
+		}
 
 		if (identity == null) {
 			Toast.makeText(this, "You entered a wrong password!",
@@ -287,6 +382,19 @@ public class MainActivity extends Activity {
 		}
 	}
 
+	// Let the user know when the first characters of the password suffice
+	private void updatePasswordHint() {
+		final int position = spinnerIdentity.getSelectedItemPosition();
+
+		if (position >= 0 && position < identityNames.size()
+				&& QuickPass.isArmed(identityNames.get(position)))
+			editTextPassword.setHint("Quick pass (first "
+					+ QuickPass.QUICK_PASS_LENGTH
+					+ " characters of your password)");
+		else
+			editTextPassword.setHint(null);
+	}
+
 	private void doCreateIdentity() {
 		final Intent intentNewIdentity = new Intent(MainActivity.this,
 				CreateIdentityActivity.class);
@@ -805,43 +913,9 @@ public class MainActivity extends Activity {
 																	.getText()
 																	.toString();
 
-															Identity importIdentity;
-															try {
-																importIdentity = Identity
-																		.getIdentityFromString(
-																				name,
-																				password,
-																				importString);
-
-																importIdentity
-																		.save(MainActivity.this);
-
-																Toast.makeText(
-																		MainActivity.this,
-																		"Identity has been imported!",
-																		Toast.LENGTH_LONG)
-																		.show();
-															} catch (InvalidImportString e) {
-																e.printStackTrace();
-
-																Toast.makeText(
-																		MainActivity.this,
-																		"Import unsucessful:\nThe QR-Code does not encode an identity!",
-																		Toast.LENGTH_LONG)
-																		.show();
-															} catch (WrongPasswordException e) {
-																e.printStackTrace();
-
-																Toast.makeText(
-																		MainActivity.this,
-																		"Import unsucessful:\nYou entered a wrong password!",
-																		Toast.LENGTH_LONG)
-																		.show();
-															} catch (DuplicateIdentityNameException e) {
-																e.printStackTrace();
-															}
-
-															restartActivity();
+															new ImportTask(name,
+																	importString)
+																	.execute(password);
 														}
 													})
 											.setNegativeButton(
@@ -930,4 +1004,120 @@ public class MainActivity extends Activity {
 		finish();
 		startActivity(intent);
 	}
+
+	// AsyncTask to decrypt and store an imported identity, can be cancelled
+	// by the user while the expensive export parameters are processed
+	private class ImportTask extends AsyncTask<String, Integer, Identity> {
+
+		private final CancellationToken cancellationToken = new CancellationToken();
+
+		private final String name;
+		private final String importString;
+
+		private ProgressDialog progressDialog;
+		private Exception exception;
+
+		public ImportTask(String name, String importString) {
+			this.name = name;
+			this.importString = importString;
+		}
+
+		@Override
+		protected void onPreExecute() {
+			progressDialog = new ProgressDialog(MainActivity.this);
+			progressDialog.setMessage("Decrypting the imported identity...");
+			progressDialog.setProgressStyle(ProgressDialog.STYLE_HORIZONTAL);
+			progressDialog.setMax(100);
+			progressDialog.setCancelable(true);
+			progressDialog
+					.setOnCancelListener(new DialogInterface.OnCancelListener() {
+
+						@Override
+						public void onCancel(DialogInterface dialog) {
+							cancellationToken.cancel();
+							cancel(false);
+						}
+					});
+			progressDialog.show();
+		}
+
+		@Override
+		protected Identity doInBackground(String... params) {
+			final String password = params[0];
+			final int[] scryptParameters = ScryptCalibration
+					.getParameters(MainActivity.this);
+
+			try {
+				return Identity.getIdentityFromString(name, password,
+						importString, scryptParameters[0],
+						scryptParameters[1], scryptParameters[2],
+						new ProgressListener() {
+
+							@Override
+							public void progress(long completed, long total) {
+								publishProgress((int) (completed * 100L / total));
+							}
+						}, cancellationToken);
+			} catch (InvalidImportString e) {
+				exception = e;
+			} catch (WrongPasswordException e) {
+				exception = e;
+			} catch (CancellationException e) {
+				// Cancelled by user
+			}
+
+			return null;
+		}
+
+		@Override
+		protected void onProgressUpdate(Integer... values) {
+			progressDialog.setProgress(values[0]);
+		}
+
+		@Override
+		protected void onPostExecute(Identity importIdentity) {
+			progressDialog.dismiss();
+
+			if (importIdentity != null) {
+				try {
+					importIdentity.save(MainActivity.this);
+
+					Toast.makeText(MainActivity.this,
+							"Identity has been imported!", Toast.LENGTH_LONG)
+							.show();
+				} catch (DuplicateIdentityNameException e) {
+					e.printStackTrace();
+				} catch (InvalidIdentityNameException e) {
+					e.printStackTrace();
+
+					Toast.makeText(MainActivity.this,
+							"Import unsucessful:\nThe name is too long!",
+							Toast.LENGTH_LONG).show();
+				}
+			} else if (exception instanceof InvalidImportString) {
+				exception.printStackTrace();
+
+				Toast.makeText(
+						MainActivity.this,
+						"Import unsucessful:\nThe QR-Code does not encode an identity!",
+						Toast.LENGTH_LONG).show();
+			} else if (exception instanceof WrongPasswordException) {
+				exception.printStackTrace();
+
+				Toast.makeText(MainActivity.this,
+						"Import unsucessful:\nYou entered a wrong password!",
+						Toast.LENGTH_LONG).show();
+			}
+
+			restartActivity();
+		}
+
+		@Override
+		protected void onCancelled() {
+			Toast.makeText(MainActivity.this, "Import has been cancelled!",
+					Toast.LENGTH_LONG).show();
+
+			restartActivity();
+		}
+	}
 }
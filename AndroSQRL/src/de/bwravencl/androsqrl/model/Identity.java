@@ -17,25 +17,25 @@
 package de.bwravencl.androsqrl.model;
 
 import java.security.GeneralSecurityException;
-import java.util.Arrays;
-import java.util.HashSet;
 import java.util.Set;
+import java.util.concurrent.CancellationException;
 
+import com.lambdaworks.codec.Base64;
+import com.lambdaworks.crypto.CancellationToken;
+import com.lambdaworks.crypto.KdfEngines;
+import com.lambdaworks.crypto.ProgressListener;
 import com.lambdaworks.crypto.SCrypt;
 
 import de.bwravencl.androsqrl.exception.DuplicateIdentityNameException;
 import de.bwravencl.androsqrl.exception.IdentityNotFoundException;
+import de.bwravencl.androsqrl.exception.InvalidIdentityNameException;
 import de.bwravencl.androsqrl.exception.InvalidImportString;
 import de.bwravencl.androsqrl.exception.WrongPasswordException;
 import de.bwravencl.androsqrl.utils.Crypto;
 
 import android.content.Context;
-import android.content.SharedPreferences;
-import android.content.SharedPreferences.Editor;
 import android.os.Parcel;
 import android.os.Parcelable;
-import android.preference.PreferenceManager;
-import android.util.Base64;
 
 public class Identity implements Parcelable {
 
@@ -50,6 +50,15 @@ public class Identity implements Parcelable {
 	public static final String PREFERENCES_IDENTITY_SCRYPT_NORMAL_PARAMETERS_p = "PREFERENCES_IDENTITY_SCRYPT_NORMAL_PARAMETERS_p";
 	public static final String PREFERENCES_IDENTITY_SCRYPT_NORMAL_PARAMETERS_dkLen = "PREFERENCES_IDENTITY_SCRYPT_NORMAL_PARAMETERS_dkLen";
 
+	// Per identity keys of earlier versions, see IdentityStore
+	static final String[] PREFERENCES_IDENTITY_KEYS = {
+			PREFERENCES_IDENTITY_MIXKEY, PREFERENCES_IDENTITY_SALT,
+			PREFERENCES_IDENTITY_VERIFIER,
+			PREFERENCES_IDENTITY_SCRYPT_NORMAL_PARAMETERS_N,
+			PREFERENCES_IDENTITY_SCRYPT_NORMAL_PARAMETERS_r,
+			PREFERENCES_IDENTITY_SCRYPT_NORMAL_PARAMETERS_p,
+			PREFERENCES_IDENTITY_SCRYPT_NORMAL_PARAMETERS_dkLen };
+
 	public static final int MIN_PASSWORD_LENGTH = 6;
 
 	public static final int SCRYPT_NORMAL_PARAMETERS_N = 16;
@@ -57,6 +66,9 @@ public class Identity implements Parcelable {
 	public static final int SCRYPT_NORMAL_PARAMETERS_p = 12;
 	public static final int SCRYPT_NORMAL_PARAMETERS_dkLen = 32;
 
+	// Fraction of the heap a single scrypt lane may use
+	public static final int SCRYPT_MEMORY_DIVISOR = 4;
+
 	public static final int SCRYPT_EXPORT_PARAMETERS_N = 32;
 	public static final int SCRYPT_EXPORT_PARAMETERS_r = 8;
 	public static final int SCRYPT_EXPORT_PARAMETERS_p = 90;
@@ -87,20 +99,31 @@ public class Identity implements Parcelable {
 
 	// Constructor used when creating a new identity from scratch
 	public Identity(String name, String password, byte[] extraEntropyBytes) {
+		this(name, password, extraEntropyBytes, SCRYPT_NORMAL_PARAMETERS_N,
+				SCRYPT_NORMAL_PARAMETERS_r, SCRYPT_NORMAL_PARAMETERS_p);
+	}
+
+	// Constructor used when creating a new identity with device specific
+	// scrypt parameters
+	public Identity(String name, String password, byte[] extraEntropyBytes,
+			int scryptParameterN, int scryptParameterR, int scryptParameterP) {
 		this.name = name;
+		this.scryptParameterN = scryptParameterN;
+		this.scryptParameterR = scryptParameterR;
+		this.scryptParameterP = scryptParameterP;
 
-		mixkey = Crypto.sha256(Crypto.concatBytes(Crypto.makeRandom(30),
-				extraEntropyBytes));
-		final byte[] salt256 = Crypto.sha256(Crypto.makeRandom(30));
-		salt = Crypto.subByte(salt256, 0, 8);
+		final byte[] random = Crypto.makeRandom(30);
+		Crypto.sha256Into(random, extraEntropyBytes, mixkey, 0);
+		Crypto.zeroByte(random);
+		salt = makeSalt();
 
 		try {
-			verifier = Crypto
-					.sha256(SCrypt.scrypt(password.getBytes(), salt,
-							SCRYPT_NORMAL_PARAMETERS_N,
-							SCRYPT_NORMAL_PARAMETERS_r,
-							SCRYPT_NORMAL_PARAMETERS_p,
-							SCRYPT_NORMAL_PARAMETERS_dkLen));
+			final byte[] scryptResult = KdfEngines.engine().derive(
+					password.getBytes(), salt, scryptParameterN,
+					scryptParameterR, scryptParameterP, scryptParameterDkLen);
+			Crypto.sha256Into(scryptResult, 0, scryptResult.length, verifier,
+					0, verifier.length);
+			Crypto.zeroByte(scryptResult);
 		} catch (GeneralSecurityException e) {
 			e.printStackTrace();
 		}
@@ -141,28 +164,59 @@ public class Identity implements Parcelable {
 	}
 
 	public boolean deriveMasterKey(String password) {
+		return deriveMasterKey(password, null, null);
+	}
+
+	// Throws a CancellationException if cancelled via the token
+	public boolean deriveMasterKey(String password, ProgressListener listener,
+			CancellationToken token) {
 		if (password == null || password.length() == 0)
 			return false;
 
 		byte[] scryptResult = {};
 		try {
-			scryptResult = SCrypt.scrypt(password.getBytes(), salt,
-					scryptParameterN, scryptParameterR, scryptParameterP,
-					scryptParameterDkLen);
+			// Identities created on devices with more memory may need a
+			// recomputing ROMix here
+			final int tradeoff = SCrypt.tradeoff(scryptParameterN,
+					scryptParameterR, Runtime.getRuntime().maxMemory()
+							/ SCRYPT_MEMORY_DIVISOR);
+			if (tradeoff > 1)
+				scryptResult = SCrypt.scryptT(password.getBytes(), salt,
+						scryptParameterN, scryptParameterR, scryptParameterP,
+						scryptParameterDkLen, tradeoff, listener, token);
+			else if (listener == null && token == null)
+				scryptResult = KdfEngines.engine().derive(password.getBytes(),
+						salt, scryptParameterN, scryptParameterR,
+						scryptParameterP, scryptParameterDkLen);
+			else
+				scryptResult = SCrypt.scrypt(password.getBytes(), salt,
+						scryptParameterN, scryptParameterR, scryptParameterP,
+						scryptParameterDkLen, listener, token);
 		} catch (GeneralSecurityException e) {
 			e.printStackTrace();
 			return false;
 		}
 
-		byte[] passwordCheck = Crypto.sha256(scryptResult);
-		boolean passwordCheckSuccess = Arrays.equals(passwordCheck, verifier);
-		if (!passwordCheckSuccess)
+		if (!Crypto.sha256Equals(scryptResult, verifier)) {
+			Crypto.zeroByte(scryptResult);
 			return false;
+		}
 
-		masterkey = Crypto.xor(mixkey, scryptResult);
+		// Reuse the masterkey array so no stale copies are left behind
+		if (masterkey == null || masterkey.length != mixkey.length)
+			masterkey = new byte[mixkey.length];
+		Crypto.xorInto(mixkey, scryptResult, masterkey);
+		Crypto.zeroByte(scryptResult);
 		return true;
 	}
 
+	// Used by QuickPass to restore the masterkey without running scrypt
+	void unwrapMasterKey(byte[] wrappedMasterkey, byte[] wrapKey) {
+		if (masterkey == null || masterkey.length != wrappedMasterkey.length)
+			masterkey = new byte[wrappedMasterkey.length];
+		Crypto.xorInto(wrappedMasterkey, wrapKey, masterkey);
+	}
+
 	// Zero the masterkey so it does not reside in memory
 	public void clearMasterKey() {
 		if (masterkey != null)
@@ -177,231 +231,94 @@ public class Identity implements Parcelable {
 			return;
 
 		if (deriveMasterKey(oldPassword)) {
-			final byte[] salt256 = Crypto.sha256(Crypto.makeRandom(30));
-			salt = Crypto.subByte(salt256, 0, 8);
+			salt = makeSalt();
 
-			byte[] newScryptResult = SCrypt.scrypt(newPassword.getBytes(),
-					salt, scryptParameterN, scryptParameterR, scryptParameterP,
-					scryptParameterDkLen);
-			verifier = Crypto.sha256(newScryptResult);
+			byte[] newScryptResult = KdfEngines.engine().derive(
+					newPassword.getBytes(), salt, scryptParameterN,
+					scryptParameterR, scryptParameterP, scryptParameterDkLen);
+			Crypto.sha256Into(newScryptResult, 0, newScryptResult.length,
+					verifier, 0, verifier.length);
 
-			mixkey = Crypto.xor(masterkey, newScryptResult);
+			Crypto.xorInto(masterkey, newScryptResult, mixkey);
+			Crypto.zeroByte(newScryptResult);
 			clearMasterKey();
 
-			final SharedPreferences sharedPreferences = getSharedPreferences(context);
-			final Editor editor = sharedPreferences.edit();
-
-			editor.putString(PREFERENCES_IDENTITY_MIXKEY + "_" + name,
-					Base64.encodeToString(mixkey, Base64.DEFAULT));
-			editor.putString(PREFERENCES_IDENTITY_SALT + "_" + name,
-					Base64.encodeToString(salt, Base64.DEFAULT));
-			editor.putString(PREFERENCES_IDENTITY_VERIFIER + "_" + name,
-					Base64.encodeToString(verifier, Base64.DEFAULT));
-
-			editor.commit();
+			try {
+				IdentityRegistry.getInstance(context).update(this);
+			} catch (IdentityNotFoundException e) {
+				// Not saved yet, the new keys are stored with it
+			}
 		}
 	}
 
+	// Served from the registry's current snapshot, does not touch storage
 	public static Set<String> loadIdentityNames(Context context) {
-		return getSharedPreferences(context).getStringSet(
-				PREFERENCES_IDENTITY_NAMES, new HashSet<String>());
+		return IdentityRegistry.getInstance(context).getSnapshot()
+				.getNameSet();
 	}
 
 	// Load from storage
 	public static Identity load(Context context, String name)
 			throws IdentityNotFoundException {
-		final SharedPreferences sharedPreferences = getSharedPreferences(context);
-
-		final Set<String> identityNames = sharedPreferences.getStringSet(
-				PREFERENCES_IDENTITY_NAMES, null);
-
-		if (identityNames == null || !identityNames.contains(name))
-			throw new IdentityNotFoundException(name);
-
-		byte[] mixkey = Base64.decode(
-				sharedPreferences.getString(PREFERENCES_IDENTITY_MIXKEY + "_"
-						+ name, null), Base64.DEFAULT);
-		byte[] salt = Base64.decode(
-				sharedPreferences.getString(PREFERENCES_IDENTITY_SALT + "_"
-						+ name, null), Base64.DEFAULT);
-		byte[] verifier = Base64.decode(
-				sharedPreferences.getString(PREFERENCES_IDENTITY_VERIFIER + "_"
-						+ name, null), Base64.DEFAULT);
-
-		int scryptParameterN = sharedPreferences.getInt(
-				PREFERENCES_IDENTITY_SCRYPT_NORMAL_PARAMETERS_N + "_" + name,
-				SCRYPT_NORMAL_PARAMETERS_N);
-		int scryptParameterR = sharedPreferences.getInt(
-				PREFERENCES_IDENTITY_SCRYPT_NORMAL_PARAMETERS_r + "_" + name,
-				SCRYPT_NORMAL_PARAMETERS_r);
-		int scryptParameterP = sharedPreferences.getInt(
-				PREFERENCES_IDENTITY_SCRYPT_NORMAL_PARAMETERS_p + "_" + name,
-				SCRYPT_NORMAL_PARAMETERS_p);
-		int scryptParameterDkLen = sharedPreferences.getInt(
-				PREFERENCES_IDENTITY_SCRYPT_NORMAL_PARAMETERS_dkLen + "_"
-						+ name, SCRYPT_NORMAL_PARAMETERS_dkLen);
-
-		return new Identity(name, mixkey, salt, verifier, scryptParameterN,
-				scryptParameterR, scryptParameterP, scryptParameterDkLen);
-
+		return IdentityRegistry.getInstance(context).load(name);
 	}
 
 	public static void deleteIdentity(Context context, String name)
 			throws IdentityNotFoundException {
-		final SharedPreferences sharedPreferences = getSharedPreferences(context);
-		final Editor editor = sharedPreferences.edit();
-
-		final Set<String> identityNames = sharedPreferences.getStringSet(
-				PREFERENCES_IDENTITY_NAMES, new HashSet<String>());
-
-		if (identityNames == null || !identityNames.contains(name))
-			throw new IdentityNotFoundException(name);
-
-		identityNames.remove(name);
-		editor.putStringSet(PREFERENCES_IDENTITY_NAMES, identityNames);
-
-		editor.remove(PREFERENCES_IDENTITY_MIXKEY + "_" + name);
-		editor.remove(PREFERENCES_IDENTITY_SALT + "_" + name);
-		editor.remove(PREFERENCES_IDENTITY_VERIFIER + "_" + name);
-		editor.remove(PREFERENCES_IDENTITY_SCRYPT_NORMAL_PARAMETERS_N + "_"
-				+ name);
-		editor.remove(PREFERENCES_IDENTITY_SCRYPT_NORMAL_PARAMETERS_r + "_"
-				+ name);
-		editor.remove(PREFERENCES_IDENTITY_SCRYPT_NORMAL_PARAMETERS_p + "_"
-				+ name);
-		editor.remove(PREFERENCES_IDENTITY_SCRYPT_NORMAL_PARAMETERS_dkLen + "_"
-				+ name);
-
-		editor.apply();
+		IdentityRegistry.getInstance(context).delete(name);
 	}
 
 	public static void renameIdentity(Context context, String oldName,
-			String newName) throws IdentityNotFoundException {
-		final SharedPreferences sharedPreferences = getSharedPreferences(context);
-		final Editor editor = sharedPreferences.edit();
-
-		final Set<String> identityNames = sharedPreferences.getStringSet(
-				PREFERENCES_IDENTITY_NAMES, new HashSet<String>());
-
-		if (identityNames == null || !identityNames.contains(oldName))
-			throw new IdentityNotFoundException(oldName);
-
-		if (identityNames.contains(newName))
-			throw new IdentityNotFoundException(newName);
-
-		identityNames.remove(oldName);
-		identityNames.add(newName);
-		editor.putStringSet(PREFERENCES_IDENTITY_NAMES, identityNames);
-
-		editor.putString(
-				PREFERENCES_IDENTITY_MIXKEY + "_" + newName,
-				sharedPreferences.getString(PREFERENCES_IDENTITY_MIXKEY + "_"
-						+ oldName, null));
-		editor.remove(PREFERENCES_IDENTITY_MIXKEY + "_" + oldName);
-
-		editor.putString(
-				PREFERENCES_IDENTITY_SALT + "_" + newName,
-				sharedPreferences.getString(PREFERENCES_IDENTITY_SALT + "_"
-						+ oldName, null));
-		editor.remove(PREFERENCES_IDENTITY_SALT + "_" + oldName);
-
-		editor.putString(
-				PREFERENCES_IDENTITY_VERIFIER + "_" + newName,
-				sharedPreferences.getString(PREFERENCES_IDENTITY_VERIFIER + "_"
-						+ oldName, null));
-		editor.remove(PREFERENCES_IDENTITY_VERIFIER + "_" + oldName);
-
-		editor.putInt(PREFERENCES_IDENTITY_SCRYPT_NORMAL_PARAMETERS_N + "_"
-				+ newName, sharedPreferences
-				.getInt(PREFERENCES_IDENTITY_SCRYPT_NORMAL_PARAMETERS_N + "_"
-						+ oldName, SCRYPT_NORMAL_PARAMETERS_N));
-		editor.remove(PREFERENCES_IDENTITY_SCRYPT_NORMAL_PARAMETERS_N + "_"
-				+ oldName);
-
-		editor.putInt(PREFERENCES_IDENTITY_SCRYPT_NORMAL_PARAMETERS_r + "_"
-				+ newName, sharedPreferences
-				.getInt(PREFERENCES_IDENTITY_SCRYPT_NORMAL_PARAMETERS_r + "_"
-						+ oldName, SCRYPT_NORMAL_PARAMETERS_r));
-		editor.remove(PREFERENCES_IDENTITY_SCRYPT_NORMAL_PARAMETERS_r + "_"
-				+ oldName);
-
-		editor.putInt(PREFERENCES_IDENTITY_SCRYPT_NORMAL_PARAMETERS_p + "_"
-				+ newName, sharedPreferences
-				.getInt(PREFERENCES_IDENTITY_SCRYPT_NORMAL_PARAMETERS_p + "_"
-						+ oldName, SCRYPT_NORMAL_PARAMETERS_p));
-		editor.remove(PREFERENCES_IDENTITY_SCRYPT_NORMAL_PARAMETERS_p + "_"
-				+ oldName);
-
-		editor.putInt(PREFERENCES_IDENTITY_SCRYPT_NORMAL_PARAMETERS_dkLen + "_"
-				+ newName, sharedPreferences.getInt(
-				PREFERENCES_IDENTITY_SCRYPT_NORMAL_PARAMETERS_dkLen + "_"
-						+ oldName, SCRYPT_NORMAL_PARAMETERS_dkLen));
-		editor.remove(PREFERENCES_IDENTITY_SCRYPT_NORMAL_PARAMETERS_dkLen + "_"
-				+ oldName);
-
-		editor.apply();
+			String newName) throws IdentityNotFoundException,
+			DuplicateIdentityNameException, InvalidIdentityNameException {
+		IdentityRegistry.getInstance(context).rename(oldName, newName);
 	}
 
 	// Saves a newly created identity to storage
-	public void save(Context context) throws DuplicateIdentityNameException {
-		final SharedPreferences sharedPreferences = getSharedPreferences(context);
-		final Editor editor = sharedPreferences.edit();
-
-		final Set<String> identityNames = sharedPreferences.getStringSet(
-				PREFERENCES_IDENTITY_NAMES, new HashSet<String>());
-
-		if (identityNames.contains(name))
-			throw new DuplicateIdentityNameException(name);
-
-		identityNames.add(name);
-		editor.putStringSet(PREFERENCES_IDENTITY_NAMES, identityNames);
-		editor.putString(PREFERENCES_IDENTITY_MIXKEY + "_" + name,
-				Base64.encodeToString(mixkey, Base64.DEFAULT));
-		editor.putString(PREFERENCES_IDENTITY_SALT + "_" + name,
-				Base64.encodeToString(salt, Base64.DEFAULT));
-		editor.putString(PREFERENCES_IDENTITY_VERIFIER + "_" + name,
-				Base64.encodeToString(verifier, Base64.DEFAULT));
-		editor.putInt(PREFERENCES_IDENTITY_SCRYPT_NORMAL_PARAMETERS_N + "_"
-				+ name, scryptParameterN);
-		editor.putInt(PREFERENCES_IDENTITY_SCRYPT_NORMAL_PARAMETERS_r + "_"
-				+ name, scryptParameterR);
-		editor.putInt(PREFERENCES_IDENTITY_SCRYPT_NORMAL_PARAMETERS_p + "_"
-				+ name, scryptParameterP);
-		editor.putInt(PREFERENCES_IDENTITY_SCRYPT_NORMAL_PARAMETERS_dkLen + "_"
-				+ name, scryptParameterDkLen);
-
-		editor.commit();
+	public void save(Context context) throws DuplicateIdentityNameException,
+			InvalidIdentityNameException {
+		IdentityRegistry.getInstance(context).add(this);
 	}
 
 	public static int getNumIdentities(Context context) {
-		return loadIdentityNames(context).size();
+		return IdentityRegistry.getInstance(context).getSnapshot().size();
 	}
 
 	public String getExportString(String password) {
-		if (deriveMasterKey(password)) {
-			final byte[] salt256 = Crypto.sha256(Crypto.makeRandom(30));
-			final byte[] exportPasswordSalt = Crypto.subByte(salt256, 0, 8);
+		return getExportString(password, null, null);
+	}
+
+	// Progress is only reported for the expensive export parameters, throws a
+	// CancellationException if cancelled via the token
+	public String getExportString(String password, ProgressListener listener,
+			CancellationToken token) {
+		if (deriveMasterKey(password, null, token)) {
+			final byte[] exportPasswordSalt = makeSalt();
 
 			byte[] exportScryptResult = {};
 			try {
 				exportScryptResult = SCrypt.scrypt(password.getBytes(),
 						exportPasswordSalt, SCRYPT_EXPORT_PARAMETERS_N,
 						SCRYPT_EXPORT_PARAMETERS_r, SCRYPT_EXPORT_PARAMETERS_p,
-						SCRYPT_EXPORT_PARAMETERS_dkLen);
+						SCRYPT_EXPORT_PARAMETERS_dkLen, listener, token);
 			} catch (GeneralSecurityException e) {
 				e.printStackTrace();
+			} catch (CancellationException e) {
+				clearMasterKey();
+				throw e;
 			}
 
 			final byte[] exportVerifier = Crypto.sha256(exportScryptResult);
 
-			final byte[] exportMixKey = Crypto.xor(masterkey,
-					exportScryptResult);
+			// The export key takes the place of the scrypt result
+			Crypto.xorInto(masterkey, exportScryptResult, exportScryptResult);
+			final byte[] exportMixKey = exportScryptResult;
 			clearMasterKey();
 
-			return Base64.encodeToString(exportMixKey, Base64.DEFAULT) + " "
-					+ Base64.encodeToString(exportPasswordSalt, Base64.DEFAULT)
+			return Base64.STANDARD.encodeToString(exportMixKey) + " "
+					+ Base64.STANDARD.encodeToString(exportPasswordSalt)
 					+ " "
-					+ Base64.encodeToString(exportVerifier, Base64.DEFAULT)
+					+ Base64.STANDARD.encodeToString(exportVerifier)
 					+ " " + SCRYPT_EXPORT_PARAMETERS_N + " "
 					+ SCRYPT_EXPORT_PARAMETERS_r + " "
 					+ SCRYPT_EXPORT_PARAMETERS_p + " "
@@ -413,16 +330,36 @@ public class Identity implements Parcelable {
 	public static Identity getIdentityFromString(String name, String password,
 			String importString) throws InvalidImportString,
 			WrongPasswordException {
+		return getIdentityFromString(name, password, importString, null, null);
+	}
+
+	public static Identity getIdentityFromString(String name, String password,
+			String importString, ProgressListener listener,
+			CancellationToken token) throws InvalidImportString,
+			WrongPasswordException {
+		return getIdentityFromString(name, password, importString,
+				SCRYPT_NORMAL_PARAMETERS_N, SCRYPT_NORMAL_PARAMETERS_r,
+				SCRYPT_NORMAL_PARAMETERS_p, listener, token);
+	}
+
+	// The imported identity is stored with the given scrypt parameters, like
+	// one created on this device. Progress is only reported for the expensive
+	// export parameters, throws a CancellationException if cancelled via the
+	// token
+	public static Identity getIdentityFromString(String name, String password,
+			String importString, int scryptParameterN, int scryptParameterR,
+			int scryptParameterP, ProgressListener listener,
+			CancellationToken token) throws InvalidImportString,
+			WrongPasswordException {
 		final String[] strings = importString.split(" ");
 
 		// Basic validity check
 		if (strings.length != 7)
 			throw new InvalidImportString(importString);
 
-		final byte[] importedMixKey = Base64.decode(strings[0], Base64.DEFAULT);
-		final byte[] importedSalt = Base64.decode(strings[1], Base64.DEFAULT);
-		final byte[] importedVerifier = Base64.decode(strings[2],
-				Base64.DEFAULT);
+		final byte[] importedMixKey = Base64.STANDARD.decode(strings[0]);
+		final byte[] importedSalt = Base64.STANDARD.decode(strings[1]);
+		final byte[] importedVerifier = Base64.STANDARD.decode(strings[2]);
 		final int importedScryptParameterN = Integer.parseInt(strings[3]);
 		final int importedScryptParameterR = Integer.parseInt(strings[4]);
 		final int importedScryptParameterP = Integer.parseInt(strings[5]);
@@ -439,32 +376,45 @@ public class Identity implements Parcelable {
 				importedScryptParameterR, importedScryptParameterP,
 				importedScryptParameterDkLen);
 
-		if (!importedIdentity.deriveMasterKey(password))
+		if (!importedIdentity.deriveMasterKey(password, listener, token))
 			throw new WrongPasswordException();
 
-		// Convert from export to normal scrypt parameters:
-		final byte[] salt256 = Crypto.sha256(Crypto.makeRandom(30));
-		final byte[] newPasswordSalt = Crypto.subByte(salt256, 0, 8);
+		// Convert from export to the given scrypt parameters:
+		final byte[] newPasswordSalt = makeSalt();
 
 		byte[] newScryptResult = {};
 		try {
 			newScryptResult = SCrypt.scrypt(password.getBytes(),
-					newPasswordSalt, SCRYPT_NORMAL_PARAMETERS_N,
-					SCRYPT_NORMAL_PARAMETERS_r, SCRYPT_NORMAL_PARAMETERS_p,
-					SCRYPT_NORMAL_PARAMETERS_dkLen);
+					newPasswordSalt, scryptParameterN, scryptParameterR,
+					scryptParameterP, SCRYPT_NORMAL_PARAMETERS_dkLen, null,
+					token);
 		} catch (GeneralSecurityException e) {
 			e.printStackTrace();
+		} catch (CancellationException e) {
+			importedIdentity.clearMasterKey();
+			throw e;
 		}
 
 		final byte[] newVerifier = Crypto.sha256(newScryptResult);
 
-		final byte[] newMixKey = Crypto.xor(importedIdentity.getMasterkey(),
+		// The new mixkey takes the place of the scrypt result
+		Crypto.xorInto(importedIdentity.getMasterkey(), newScryptResult,
 				newScryptResult);
+		final byte[] newMixKey = newScryptResult;
 		importedIdentity.clearMasterKey();
 
 		return new Identity(name, newMixKey, newPasswordSalt, newVerifier,
-				SCRYPT_NORMAL_PARAMETERS_N, SCRYPT_NORMAL_PARAMETERS_r,
-				SCRYPT_NORMAL_PARAMETERS_p, SCRYPT_NORMAL_PARAMETERS_dkLen);
+				scryptParameterN, scryptParameterR, scryptParameterP,
+				SCRYPT_NORMAL_PARAMETERS_dkLen);
+	}
+
+	// First 8 bytes of the sha256 of 30 random bytes
+	private static byte[] makeSalt() {
+		final byte[] random = Crypto.makeRandom(30);
+		final byte[] salt = new byte[8];
+		Crypto.sha256Into(random, 0, random.length, salt, 0, salt.length);
+
+		return salt;
 	}
 
 	@Override
@@ -485,7 +435,31 @@ public class Identity implements Parcelable {
 		dest.writeInt(scryptParameterDkLen);
 	}
 
-	private static SharedPreferences getSharedPreferences(Context context) {
-		return PreferenceManager.getDefaultSharedPreferences(context);
+	byte[] getMixkey() {
+		return mixkey;
+	}
+
+	byte[] getSalt() {
+		return salt;
+	}
+
+	byte[] getVerifier() {
+		return verifier;
+	}
+
+	int getScryptParameterN() {
+		return scryptParameterN;
+	}
+
+	int getScryptParameterR() {
+		return scryptParameterR;
+	}
+
+	int getScryptParameterP() {
+		return scryptParameterP;
+	}
+
+	int getScryptParameterDkLen() {
+		return scryptParameterDkLen;
 	}
 }
@@ -0,0 +1,161 @@
+/*
+ * Copyright 2013 Matteo Hausner
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.bwravencl.androsqrl.model;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import de.bwravencl.androsqrl.exception.DuplicateIdentityNameException;
+import de.bwravencl.androsqrl.exception.IdentityNotFoundException;
+import de.bwravencl.androsqrl.exception.InvalidIdentityNameException;
+
+import android.content.Context;
+
+// Process-wide view of the stored identities. Reads are served from an
+// immutable snapshot without locking, every change to the store publishes a
+// new snapshot and notifies the listeners on the thread that made the change.
+public class IdentityRegistry {
+
+	public interface Listener {
+
+		public void onIdentitiesChanged(Snapshot snapshot);
+	}
+
+	public static class Snapshot {
+
+		private final List<String> names;
+		private final Set<String> nameSet;
+
+		private Snapshot(Collection<String> names) {
+			final List<String> sortedNames = new ArrayList<String>(names);
+			Collections.sort(sortedNames);
+
+			this.names = Collections.unmodifiableList(sortedNames);
+			this.nameSet = Collections.unmodifiableSet(new HashSet<String>(
+					names));
+		}
+
+		// Sorted alphabetically
+		public List<String> getNames() {
+			return names;
+		}
+
+		public Set<String> getNameSet() {
+			return nameSet;
+		}
+
+		public boolean contains(String name) {
+			return nameSet.contains(name);
+		}
+
+		public int size() {
+			return names.size();
+		}
+	}
+
+	private static IdentityRegistry instance;
+
+	private final IdentityStore store;
+
+	private volatile Snapshot snapshot;
+
+	private final List<Listener> listeners = new CopyOnWriteArrayList<Listener>();
+
+	private IdentityRegistry(IdentityStore store) {
+		this.store = store;
+		snapshot = new Snapshot(store.getNames());
+	}
+
+	public static synchronized IdentityRegistry getInstance(Context context) {
+		if (instance == null)
+			instance = new IdentityRegistry(IdentityStore.getInstance(context));
+
+		return instance;
+	}
+
+	public Snapshot getSnapshot() {
+		return snapshot;
+	}
+
+	public void addListener(Listener listener) {
+		listeners.add(listener);
+	}
+
+	public void removeListener(Listener listener) {
+		listeners.remove(listener);
+	}
+
+	public Identity load(String name) throws IdentityNotFoundException {
+		return store.load(name);
+	}
+
+	// Identities of an earlier version that could not be migrated and can't
+	// be used
+	public Set<String> getUnmigratedNames() {
+		return store.getUnmigratedNames();
+	}
+
+	public void add(Identity identity) throws DuplicateIdentityNameException,
+			InvalidIdentityNameException {
+		synchronized (this) {
+			store.add(identity);
+			snapshot = new Snapshot(store.getNames());
+		}
+		notifyListeners();
+	}
+
+	// Only the keys change, so no new snapshot is needed
+	public void update(Identity identity) throws IdentityNotFoundException {
+		store.update(identity);
+
+		// A quick pass armed with the old password must not unlock it
+		QuickPass.clear();
+	}
+
+	public void rename(String oldName, String newName)
+			throws IdentityNotFoundException, DuplicateIdentityNameException,
+			InvalidIdentityNameException {
+		synchronized (this) {
+			store.rename(oldName, newName);
+			snapshot = new Snapshot(store.getNames());
+		}
+		QuickPass.clear();
+		notifyListeners();
+	}
+
+	public void delete(String name) throws IdentityNotFoundException {
+		synchronized (this) {
+			store.delete(name);
+			snapshot = new Snapshot(store.getNames());
+		}
+		// Otherwise an identity saved under the same name later would be
+		// unlocked with the deleted one's master key
+		QuickPass.clear();
+		notifyListeners();
+	}
+
+	private void notifyListeners() {
+		final Snapshot current = snapshot;
+		for (Listener listener : listeners)
+			listener.onIdentitiesChanged(current);
+	}
+}
@@ -0,0 +1,548 @@
+/*
+ * Copyright 2013 Matteo Hausner
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.bwravencl.androsqrl.model;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.CRC32;
+
+import com.lambdaworks.codec.Base64;
+
+import de.bwravencl.androsqrl.exception.DuplicateIdentityNameException;
+import de.bwravencl.androsqrl.exception.IdentityNotFoundException;
+import de.bwravencl.androsqrl.exception.InvalidIdentityNameException;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.content.SharedPreferences.Editor;
+import android.preference.PreferenceManager;
+import android.util.Log;
+
+// Keeps all identities in one file of fixed-length records, with a name to
+// record index in memory. Every change rewrites a single record: the record
+// is first written to a journal, then in place, and the journal is replayed
+// if the process dies in between. Identities stored in SharedPreferences by
+// earlier versions are migrated when the store is first opened.
+public class IdentityStore {
+
+	public static final String STORE_FILE_NAME = "identities.bin";
+	public static final String JOURNAL_FILE_NAME = "identities.journal";
+
+	public static final int MAX_NAME_LENGTH = 256; // UTF-8 bytes
+
+	private static final int MAGIC = 0x53514c49; // "SQLI"
+	private static final int VERSION = 1;
+	private static final int HEADER_LENGTH = 8;
+
+	private static final int MAX_MIXKEY_LENGTH = 64;
+	private static final int MAX_SALT_LENGTH = 32;
+	private static final int MAX_VERIFIER_LENGTH = 32;
+
+	// Record layout, all integers are big endian
+	private static final int OFFSET_IN_USE = 0;
+	private static final int OFFSET_N = 4;
+	private static final int OFFSET_r = 8;
+	private static final int OFFSET_p = 12;
+	private static final int OFFSET_dkLen = 16;
+	// Names are stored as a short length and the bytes, keys as a byte length
+	// and the bytes
+	private static final int OFFSET_NAME = 20;
+	private static final int OFFSET_MIXKEY = OFFSET_NAME + 2 + MAX_NAME_LENGTH;
+	private static final int OFFSET_SALT = OFFSET_MIXKEY + 1
+			+ MAX_MIXKEY_LENGTH;
+	private static final int OFFSET_VERIFIER = OFFSET_SALT + 1
+			+ MAX_SALT_LENGTH;
+	private static final int RECORD_LENGTH = 416;
+
+	private static final String TAG = "AndroSQRL";
+
+	private static IdentityStore instance;
+
+	private final File storeFile;
+	private final File journalFile;
+
+	private final List<byte[]> records = new ArrayList<byte[]>();
+	private final Map<String, Integer> index = new HashMap<String, Integer>();
+	private final ArrayDeque<Integer> freeSlots = new ArrayDeque<Integer>();
+
+	// Identities that earlier versions kept in SharedPreferences and that
+	// could not be migrated
+	private final Set<String> unmigratedNames;
+
+	private IdentityStore(Context context) throws IOException {
+		storeFile = new File(context.getFilesDir(), STORE_FILE_NAME);
+		journalFile = new File(context.getFilesDir(), JOURNAL_FILE_NAME);
+
+		if (!storeFile.exists())
+			migrate(context);
+
+		replayJournal();
+		read();
+
+		unmigratedNames = new HashSet<String>(PreferenceManager
+				.getDefaultSharedPreferences(context).getStringSet(
+						Identity.PREFERENCES_IDENTITY_NAMES,
+						new HashSet<String>()));
+	}
+
+	public static synchronized IdentityStore getInstance(Context context) {
+		if (instance == null)
+			try {
+				instance = new IdentityStore(context.getApplicationContext());
+			} catch (IOException e) {
+				throw new IllegalStateException("Could not open "
+						+ STORE_FILE_NAME, e);
+			}
+
+		return instance;
+	}
+
+	public synchronized Set<String> getNames() {
+		return new HashSet<String>(index.keySet());
+	}
+
+	public synchronized int size() {
+		return index.size();
+	}
+
+	public synchronized boolean contains(String name) {
+		return index.containsKey(name);
+	}
+
+	public Set<String> getUnmigratedNames() {
+		return new HashSet<String>(unmigratedNames);
+	}
+
+	public synchronized Identity load(String name)
+			throws IdentityNotFoundException {
+		final Integer slot = index.get(name);
+		if (slot == null)
+			throw new IdentityNotFoundException(name);
+
+		try {
+			return toIdentity(records.get(slot));
+		} catch (IOException e) {
+			// Records are validated when the store is read
+			throw new IllegalStateException(e);
+		}
+	}
+
+	public synchronized void add(Identity identity)
+			throws DuplicateIdentityNameException, InvalidIdentityNameException {
+		if (index.containsKey(identity.getName()))
+			throw new DuplicateIdentityNameException(identity.getName());
+
+		final int slot = freeSlots.isEmpty() ? records.size() : freeSlots
+				.pop();
+		write(slot, toRecord(identity.getName(), identity));
+		index.put(identity.getName(), slot);
+	}
+
+	// Stores the changed keys of an existing identity
+	public synchronized void update(Identity identity)
+			throws IdentityNotFoundException {
+		final Integer slot = index.get(identity.getName());
+		if (slot == null)
+			throw new IdentityNotFoundException(identity.getName());
+
+		try {
+			write(slot, toRecord(identity.getName(), identity));
+		} catch (InvalidIdentityNameException e) {
+			// The name has been stored before
+			throw new IllegalStateException(e);
+		}
+	}
+
+	public synchronized void delete(String name)
+			throws IdentityNotFoundException {
+		final Integer slot = index.get(name);
+		if (slot == null)
+			throw new IdentityNotFoundException(name);
+
+		// An unused record is all zeros, so no key material is left behind
+		write(slot, new byte[RECORD_LENGTH]);
+		index.remove(name);
+		freeSlots.push(slot);
+	}
+
+	public synchronized void rename(String oldName, String newName)
+			throws IdentityNotFoundException, DuplicateIdentityNameException,
+			InvalidIdentityNameException {
+		final Integer slot = index.get(oldName);
+		if (slot == null)
+			throw new IdentityNotFoundException(oldName);
+
+		if (index.containsKey(newName))
+			throw new DuplicateIdentityNameException(newName);
+
+		final byte[] record = records.get(slot).clone();
+		putName(record, newName);
+		write(slot, record);
+
+		index.remove(oldName);
+		index.put(newName, slot);
+	}
+
+	// Journals a record, writes it in place and then drops the journal
+	private void write(int slot, byte[] record) {
+		try {
+			writeJournal(slot, record);
+			writeRecord(slot, record);
+			journalFile.delete();
+		} catch (IOException e) {
+			throw new IllegalStateException("Could not write "
+					+ STORE_FILE_NAME, e);
+		}
+
+		if (slot == records.size())
+			records.add(record);
+		else {
+			Arrays.fill(records.get(slot), (byte) 0);
+			records.set(slot, record);
+		}
+	}
+
+	private void writeJournal(int slot, byte[] record) throws IOException {
+		final FileOutputStream out = new FileOutputStream(journalFile);
+		try {
+			final DataOutputStream dataOut = new DataOutputStream(out);
+			dataOut.writeInt(MAGIC);
+			dataOut.writeInt(slot);
+			dataOut.write(record);
+			dataOut.writeLong(checksum(slot, record));
+			dataOut.flush();
+			out.getFD().sync();
+		} finally {
+			out.close();
+		}
+	}
+
+	private void writeRecord(int slot, byte[] record) throws IOException {
+		final RandomAccessFile file = new RandomAccessFile(storeFile, "rw");
+		try {
+			file.seek(HEADER_LENGTH + (long) slot * RECORD_LENGTH);
+			file.write(record);
+			file.getFD().sync();
+		} finally {
+			file.close();
+		}
+	}
+
+	// Completes a write that was interrupted after the journal was synced, a
+	// torn journal means the store was never touched
+	private void replayJournal() throws IOException {
+		if (!journalFile.exists())
+			return;
+
+		if (journalFile.length() == 4 + 4 + RECORD_LENGTH + 8) {
+			final DataInputStream in = new DataInputStream(new FileInputStream(
+					journalFile));
+			try {
+				final int magic = in.readInt();
+				final int slot = in.readInt();
+				final byte[] record = new byte[RECORD_LENGTH];
+				in.readFully(record);
+				final long checksum = in.readLong();
+
+				if (magic == MAGIC && slot >= 0
+						&& checksum == checksum(slot, record))
+					writeRecord(slot, record);
+			} finally {
+				in.close();
+			}
+		}
+
+		journalFile.delete();
+	}
+
+	private void read() throws IOException {
+		final DataInputStream in = new DataInputStream(new FileInputStream(
+				storeFile));
+		try {
+			if (in.readInt() != MAGIC || in.readInt() != VERSION)
+				throw new IOException(STORE_FILE_NAME + " has an unknown format");
+
+			final long numRecords = (storeFile.length() - HEADER_LENGTH)
+					/ RECORD_LENGTH;
+			for (int slot = 0; slot < numRecords; slot++) {
+				final byte[] record = new byte[RECORD_LENGTH];
+				in.readFully(record);
+				records.add(record);
+
+				if (record[OFFSET_IN_USE] == 0) {
+					freeSlots.add(slot);
+					continue;
+				}
+
+				// A corrupt record is left alone instead of failing on every
+				// start, its slot is not reused so that it can still be
+				// recovered
+				final String name;
+				try {
+					toIdentity(record);
+					name = getName(record);
+				} catch (IOException e) {
+					Log.w(TAG, "Skipping record " + slot, e);
+					continue;
+				}
+
+				if (index.containsKey(name))
+					Log.w(TAG, "Skipping record " + slot
+							+ " with the duplicate name '" + name + "'");
+				else
+					index.put(name, slot);
+			}
+		} finally {
+			in.close();
+		}
+	}
+
+	// Streams the identities kept in SharedPreferences by earlier versions
+	// into a new store file, which replaces the preferences once it is
+	// complete. Names too long for a record are shortened, identities whose
+	// keys don't fit are skipped and stay in the preferences, so they can't
+	// keep the store from being created.
+	private void migrate(Context context) throws IOException {
+		final SharedPreferences sharedPreferences = PreferenceManager
+				.getDefaultSharedPreferences(context);
+		final Set<String> names = sharedPreferences.getStringSet(
+				Identity.PREFERENCES_IDENTITY_NAMES, new HashSet<String>());
+
+		final Set<String> migratedNames = new HashSet<String>();
+		final Set<String> skippedNames = new HashSet<String>();
+
+		final File tempFile = new File(storeFile.getPath() + ".tmp");
+		final FileOutputStream out = new FileOutputStream(tempFile);
+		try {
+			final DataOutputStream dataOut = new DataOutputStream(out);
+			dataOut.writeInt(MAGIC);
+			dataOut.writeInt(VERSION);
+
+			for (String name : names) {
+				final String recordName = fitName(name, names, migratedNames);
+				final byte[] record;
+				try {
+					record = toRecord(recordName,
+							loadFromPreferences(sharedPreferences, name));
+				} catch (InvalidIdentityNameException e) {
+					throw new IllegalStateException(e);
+				} catch (IllegalArgumentException e) {
+					Log.w(TAG, "Identity '" + name + "' was not migrated", e);
+					skippedNames.add(name);
+					continue;
+				}
+
+				if (!recordName.equals(name))
+					Log.i(TAG, "Identity '" + name + "' was migrated as '"
+							+ recordName + "'");
+				migratedNames.add(recordName);
+
+				dataOut.write(record);
+				Arrays.fill(record, (byte) 0);
+			}
+
+			dataOut.flush();
+			out.getFD().sync();
+		} finally {
+			out.close();
+		}
+
+		if (!tempFile.renameTo(storeFile))
+			throw new IOException("Could not rename " + tempFile + " to "
+					+ storeFile);
+
+		final Editor editor = sharedPreferences.edit();
+		if (skippedNames.isEmpty())
+			editor.remove(Identity.PREFERENCES_IDENTITY_NAMES);
+		else
+			editor.putStringSet(Identity.PREFERENCES_IDENTITY_NAMES,
+					skippedNames);
+		for (String name : names)
+			if (!skippedNames.contains(name))
+				for (String key : Identity.PREFERENCES_IDENTITY_KEYS)
+					editor.remove(key + "_" + name);
+		editor.commit();
+	}
+
+	// Shortens a name to fit into a record, numbering it if the shortened
+	// name is taken
+	private static String fitName(String name, Set<String> names,
+			Set<String> migratedNames) {
+		if (utf8Length(name, name.length()) <= MAX_NAME_LENGTH)
+			return name;
+
+		for (int n = 1;; n++) {
+			final String suffix = n == 1 ? "" : " (" + n + ")";
+			final int maxLength = MAX_NAME_LENGTH - suffix.length();
+
+			int end = 0;
+			while (end < name.length()) {
+				final int next = end
+						+ Character.charCount(name.codePointAt(end));
+				if (utf8Length(name, next) > maxLength)
+					break;
+				end = next;
+			}
+
+			final String candidate = name.substring(0, end) + suffix;
+			if (!names.contains(candidate)
+					&& !migratedNames.contains(candidate))
+				return candidate;
+		}
+	}
+
+	private static int utf8Length(String string, int end) {
+		try {
+			return string.substring(0, end).getBytes("UTF-8").length;
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static Identity loadFromPreferences(
+			SharedPreferences sharedPreferences, String name) {
+		final String suffix = "_" + name;
+
+		final byte[] mixkey = Base64.STANDARD.decode(sharedPreferences
+				.getString(Identity.PREFERENCES_IDENTITY_MIXKEY + suffix, ""));
+		final byte[] salt = Base64.STANDARD.decode(sharedPreferences
+				.getString(Identity.PREFERENCES_IDENTITY_SALT + suffix, ""));
+		final byte[] verifier = Base64.STANDARD
+				.decode(sharedPreferences.getString(
+						Identity.PREFERENCES_IDENTITY_VERIFIER + suffix, ""));
+
+		final int scryptParameterN = sharedPreferences.getInt(
+				Identity.PREFERENCES_IDENTITY_SCRYPT_NORMAL_PARAMETERS_N
+						+ suffix, Identity.SCRYPT_NORMAL_PARAMETERS_N);
+		final int scryptParameterR = sharedPreferences.getInt(
+				Identity.PREFERENCES_IDENTITY_SCRYPT_NORMAL_PARAMETERS_r
+						+ suffix, Identity.SCRYPT_NORMAL_PARAMETERS_r);
+		final int scryptParameterP = sharedPreferences.getInt(
+				Identity.PREFERENCES_IDENTITY_SCRYPT_NORMAL_PARAMETERS_p
+						+ suffix, Identity.SCRYPT_NORMAL_PARAMETERS_p);
+		final int scryptParameterDkLen = sharedPreferences.getInt(
+				Identity.PREFERENCES_IDENTITY_SCRYPT_NORMAL_PARAMETERS_dkLen
+						+ suffix, Identity.SCRYPT_NORMAL_PARAMETERS_dkLen);
+
+		return new Identity(name, mixkey, salt, verifier, scryptParameterN,
+				scryptParameterR, scryptParameterP, scryptParameterDkLen);
+	}
+
+	private static byte[] toRecord(String name, Identity identity)
+			throws InvalidIdentityNameException {
+		final byte[] record = new byte[RECORD_LENGTH];
+		final ByteBuffer buffer = ByteBuffer.wrap(record);
+
+		record[OFFSET_IN_USE] = 1;
+		buffer.putInt(OFFSET_N, identity.getScryptParameterN());
+		buffer.putInt(OFFSET_r, identity.getScryptParameterR());
+		buffer.putInt(OFFSET_p, identity.getScryptParameterP());
+		buffer.putInt(OFFSET_dkLen, identity.getScryptParameterDkLen());
+		putName(record, name);
+		putBytes(record, OFFSET_MIXKEY, MAX_MIXKEY_LENGTH, identity.getMixkey());
+		putBytes(record, OFFSET_SALT, MAX_SALT_LENGTH, identity.getSalt());
+		putBytes(record, OFFSET_VERIFIER, MAX_VERIFIER_LENGTH,
+				identity.getVerifier());
+
+		return record;
+	}
+
+	private static Identity toIdentity(byte[] record) throws IOException {
+		final ByteBuffer buffer = ByteBuffer.wrap(record);
+
+		return new Identity(getName(record), getBytes(record, OFFSET_MIXKEY,
+				MAX_MIXKEY_LENGTH), getBytes(record, OFFSET_SALT,
+				MAX_SALT_LENGTH), getBytes(record, OFFSET_VERIFIER,
+				MAX_VERIFIER_LENGTH), buffer.getInt(OFFSET_N),
+				buffer.getInt(OFFSET_r), buffer.getInt(OFFSET_p),
+				buffer.getInt(OFFSET_dkLen));
+	}
+
+	private static void putName(byte[] record, String name)
+			throws InvalidIdentityNameException {
+		final byte[] bytes;
+		try {
+			bytes = name.getBytes("UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+
+		if (bytes.length > MAX_NAME_LENGTH)
+			throw new InvalidIdentityNameException(name);
+
+		Arrays.fill(record, OFFSET_NAME, OFFSET_NAME + 2 + MAX_NAME_LENGTH,
+				(byte) 0);
+		ByteBuffer.wrap(record).putShort(OFFSET_NAME, (short) bytes.length);
+		System.arraycopy(bytes, 0, record, OFFSET_NAME + 2, bytes.length);
+	}
+
+	private static String getName(byte[] record) throws IOException {
+		final int length = ByteBuffer.wrap(record).getShort(OFFSET_NAME);
+		if (length < 0 || length > MAX_NAME_LENGTH)
+			throw new IOException(STORE_FILE_NAME
+					+ " contains a record with an invalid name length");
+
+		try {
+			return new String(record, OFFSET_NAME + 2, length, "UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static void putBytes(byte[] record, int offset, int maxLength,
+			byte[] bytes) {
+		if (bytes.length > maxLength)
+			throw new IllegalArgumentException("Key is longer than "
+					+ maxLength + " bytes");
+
+		record[offset] = (byte) bytes.length;
+		System.arraycopy(bytes, 0, record, offset + 1, bytes.length);
+	}
+
+	private static byte[] getBytes(byte[] record, int offset, int maxLength)
+			throws IOException {
+		final int length = record[offset] & 0xff;
+		if (length > maxLength)
+			throw new IOException(STORE_FILE_NAME
+					+ " contains a record with an invalid key length");
+
+		return Arrays.copyOfRange(record, offset + 1, offset + 1 + length);
+	}
+
+	private static long checksum(int slot, byte[] record) {
+		final CRC32 crc = new CRC32();
+		crc.update(ByteBuffer.allocate(4).putInt(slot).array());
+		crc.update(record);
+
+		return crc.getValue();
+	}
+}
@@ -0,0 +1,183 @@
+/*
+ * Copyright 2013 Matteo Hausner
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.bwravencl.androsqrl.model;
+
+import java.security.GeneralSecurityException;
+import java.util.Timer;
+import java.util.TimerTask;
+
+import com.lambdaworks.crypto.PBKDF2HmacSHA256;
+
+import de.bwravencl.androsqrl.exception.IdentityNotFoundException;
+import de.bwravencl.androsqrl.utils.Crypto;
+import de.bwravencl.androsqrl.utils.SiteKeyCache;
+
+import android.content.Context;
+
+// SQRL style quick pass: after a full unlock the master key is kept in memory
+// wrapped under a key derived from the first QUICK_PASS_LENGTH characters of
+// the password with a cheap PBKDF2, so that unlocking again within the idle
+// timeout takes milliseconds instead of a full scrypt run. A short prefix and
+// a cheap KDF are only acceptable because the wrapped key is wiped after a
+// single wrong quick pass, after the idle timeout and when the screen turns
+// off.
+public class QuickPass {
+
+	public static final String PREFERENCES_QUICK_PASS_TIMEOUT = "pref_title_quick_pass_timeout";
+	public static final long DEFAULT_QUICK_PASS_TIMEOUT = 5L * 60L; // s
+
+	public static final int QUICK_PASS_LENGTH = 4;
+	public static final int QUICK_PASS_ITERATIONS = 4096;
+
+	private static final int SALT_LENGTH = 16;
+
+	private static String name;
+	private static byte[] identityVerifierHash;
+	private static byte[] wrappedMasterkey;
+	private static byte[] salt;
+	private static byte[] verifier;
+	private static long timeout; // ms
+
+	private static Timer timer;
+
+	// Wraps the unlocked master key of identity, replacing any armed one
+	public static synchronized void arm(Identity identity, String password,
+			long timeout) {
+		clear();
+
+		if (timeout <= 0 || password.length() < QUICK_PASS_LENGTH)
+			return;
+
+		final byte[] masterkey = identity.getMasterkey();
+		final byte[] wrapKey = new byte[masterkey.length];
+		salt = Crypto.makeRandom(SALT_LENGTH);
+		if (!deriveWrapKey(password.substring(0, QUICK_PASS_LENGTH), wrapKey)) {
+			salt = null;
+			return;
+		}
+
+		name = identity.getName();
+		identityVerifierHash = Crypto.sha256(identity.getVerifier());
+		verifier = Crypto.sha256(wrapKey);
+		wrappedMasterkey = Crypto.xor(masterkey, wrapKey);
+		Crypto.zeroByte(wrapKey);
+		QuickPass.timeout = timeout * 1000L;
+
+		scheduleClear();
+	}
+
+	public static synchronized boolean isArmed(String name) {
+		return wrappedMasterkey != null && name.equals(QuickPass.name);
+	}
+
+	// Returns the unlocked identity, or null if the quick pass is wrong, in
+	// which case the full password is required from then on
+	public static synchronized Identity unlock(Context context,
+			String quickPass) {
+		if (wrappedMasterkey == null)
+			return null;
+
+		final byte[] wrapKey = new byte[wrappedMasterkey.length];
+		if (quickPass.length() != QUICK_PASS_LENGTH
+				|| !deriveWrapKey(quickPass, wrapKey)
+				|| !Crypto.sha256Equals(wrapKey, verifier)) {
+			Crypto.zeroByte(wrapKey);
+			clear();
+			return null;
+		}
+
+		try {
+			final Identity identity = Identity.load(context, name);
+
+			// The name alone does not tell whether this is still the identity
+			// that was unlocked with the same password
+			if (!Crypto.sha256Equals(identity.getVerifier(),
+					identityVerifierHash)) {
+				clear();
+				return null;
+			}
+
+			identity.unwrapMasterKey(wrappedMasterkey, wrapKey);
+
+			// The idle timeout starts over with every use
+			scheduleClear();
+
+			return identity;
+		} catch (IdentityNotFoundException e) {
+			clear();
+			return null;
+		} finally {
+			Crypto.zeroByte(wrapKey);
+		}
+	}
+
+	public static synchronized void clear() {
+		if (timer != null) {
+			timer.cancel();
+			timer = null;
+		}
+
+		if (wrappedMasterkey != null)
+			Crypto.zeroByte(wrappedMasterkey);
+		if (verifier != null)
+			Crypto.zeroByte(verifier);
+		if (identityVerifierHash != null)
+			Crypto.zeroByte(identityVerifierHash);
+
+		name = null;
+		identityVerifierHash = null;
+		wrappedMasterkey = null;
+		salt = null;
+		verifier = null;
+
+		// Cached site keys end with the session
+		SiteKeyCache.clear();
+	}
+
+	private static void scheduleClear() {
+		if (timer != null)
+			timer.cancel();
+
+		final Timer scheduledTimer = new Timer("quick-pass-timeout", true);
+		timer = scheduledTimer;
+		timer.schedule(new TimerTask() {
+
+			@Override
+			public void run() {
+				synchronized (QuickPass.class) {
+					// A task that was already running when the pass got
+					// armed again or used must not wipe it
+					if (timer == scheduledTimer)
+						clear();
+				}
+			}
+		}, timeout);
+	}
+
+	private static boolean deriveWrapKey(String quickPass, byte[] wrapKey) {
+		final PBKDF2HmacSHA256 kdf = new PBKDF2HmacSHA256(quickPass.getBytes());
+		try {
+			kdf.pbkdf2(salt, QUICK_PASS_ITERATIONS, wrapKey, wrapKey.length);
+			return true;
+		} catch (GeneralSecurityException e) {
+			e.printStackTrace();
+			return false;
+		} finally {
+			kdf.wipe();
+		}
+	}
+}
@@ -16,49 +16,103 @@
 
 package de.bwravencl.androsqrl.utils;
 
+import java.security.DigestException;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
-import java.security.SecureRandom;
 
 public class Crypto {
 
-	// XOR two byte arrays
-	public static byte[] xor(byte[] a, byte[] b) {
-		final int l = a.length;
-		byte[] out = new byte[l];
+	public static final int SHA256_LENGTH = 32;
+
+	// MessageDigest.getInstance is expensive, keep one digest per thread
+	private static final ThreadLocal<MessageDigest> sha256Digest = new ThreadLocal<MessageDigest>() {
 
-		for (int i = 0; i < l; i++) {
-			out[i] = (byte) (a[i] ^ b[i]);
+		@Override
+		protected MessageDigest initialValue() {
+			try {
+				return MessageDigest.getInstance("SHA-256");
+			} catch (NoSuchAlgorithmException e) {
+				throw new IllegalStateException(e);
+			}
 		}
+	};
+
+	// Scratch space for digests that are truncated
+	private static final ThreadLocal<byte[]> sha256Scratch = new ThreadLocal<byte[]>() {
+
+		@Override
+		protected byte[] initialValue() {
+			return new byte[SHA256_LENGTH];
+		}
+	};
+
+	// XOR two byte arrays
+	public static byte[] xor(byte[] a, byte[] b) {
+		final byte[] out = new byte[a.length];
+		xorInto(a, 0, b, 0, out, 0, a.length);
 
 		return out;
 	}
 
+	// XOR two byte arrays into out, which may be one of the inputs
+	public static void xorInto(byte[] a, byte[] b, byte[] out) {
+		xorInto(a, 0, b, 0, out, 0, out.length);
+	}
+
+	// XOR len bytes of two ranges into a range of out, which may overlap
+	// either input at the same offset
+	public static void xorInto(byte[] a, int aOffset, byte[] b, int bOffset,
+			byte[] out, int outOffset, int len) {
+		for (int i = 0; i < len; i++) {
+			out[outOffset + i] = (byte) (a[aOffset + i] ^ b[bOffset + i]);
+		}
+	}
+
 	// Make a random byte array
 	public static byte[] makeRandom(int len) {
 		final byte[] out = new byte[len];
 
-		final SecureRandom sr = new SecureRandom();
-		sr.nextBytes(out);
+		Fortuna.getInstance().nextBytes(out);
 
 		return out;
 	}
 
 	// calculate sha256
 	public static byte[] sha256(byte[] input) {
-		byte[] out = null;
-
-		try {
-			final MessageDigest digest = MessageDigest.getInstance("SHA-256");
-			digest.reset();
-			out = digest.digest(input);
-		} catch (NoSuchAlgorithmException e) {
-			e.printStackTrace();
-		}
+		final byte[] out = new byte[SHA256_LENGTH];
+		sha256Into(input, 0, input.length, out, 0, SHA256_LENGTH);
 
 		return out;
 	}
 
+	// calculate sha256 of a range and write the first outLength bytes of it to
+	// out
+	public static void sha256Into(byte[] input, int offset, int length,
+			byte[] out, int outOffset, int outLength) {
+		final MessageDigest digest = sha256Digest.get();
+		digest.update(input, offset, length);
+		finish(digest, out, outOffset, outLength);
+	}
+
+	// calculate sha256 of the concatenation of a and b without concatenating
+	// them
+	public static void sha256Into(byte[] a, byte[] b, byte[] out, int outOffset) {
+		final MessageDigest digest = sha256Digest.get();
+		digest.update(a);
+		digest.update(b);
+		finish(digest, out, outOffset, SHA256_LENGTH);
+	}
+
+	// compare the sha256 of input to expected in constant time
+	public static boolean sha256Equals(byte[] input, byte[] expected) {
+		final byte[] scratch = sha256Scratch.get();
+		sha256Into(input, 0, input.length, scratch, 0, SHA256_LENGTH);
+		final boolean equal = MessageDigest.isEqual(scratch, expected);
+		zeroByte(scratch);
+
+		return equal;
+	}
+
 	// substring for bytes
 	public static byte[] subByte(byte[] input, int start, int length) {
 		final byte[] out = new byte[length];
@@ -82,4 +136,29 @@ public class Crypto {
 			a[i] = 0;
 		}
 	}
+
+	// zeros a range of a byte array
+	public static void zeroByte(byte[] a, int offset, int length) {
+		for (int i = offset + length - 1; i >= offset; --i) {
+			a[i] = 0;
+		}
+	}
+
+	private static void finish(MessageDigest digest, byte[] out,
+			int outOffset, int outLength) {
+		try {
+			if (outLength >= SHA256_LENGTH) {
+				digest.digest(out, outOffset, SHA256_LENGTH);
+				return;
+			}
+
+			final byte[] scratch = sha256Scratch.get();
+			digest.digest(scratch, 0, SHA256_LENGTH);
+			System.arraycopy(scratch, 0, out, outOffset, outLength);
+			zeroByte(scratch);
+		} catch (DigestException e) {
+			digest.reset();
+			throw new IllegalArgumentException(e);
+		}
+	}
 }
@@ -0,0 +1,75 @@
+/*
+ * Copyright 2013 Matteo Hausner
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.bwravencl.androsqrl.utils;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+// Absorbs camera frames into a running SHA-512 pool, so that capturing uses
+// constant memory however long it runs. All access is synchronized, so
+// frames and the seed may be handled on different threads.
+public class EntropyAccumulator {
+
+	public static final int SEED_LENGTH = 64;
+
+	private final MessageDigest pool;
+	private final byte[] timestamp = new byte[8];
+
+	private int framesAdded = 0;
+	private boolean finished = false;
+
+	public EntropyAccumulator() {
+		try {
+			pool = MessageDigest.getInstance("SHA-512");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	// Absorb the first length bytes of a frame, returns false once the seed
+	// has been taken
+	public synchronized boolean addFrame(byte[] frame, int length) {
+		if (finished)
+			return false;
+
+		// The arrival time adds a little scheduling jitter to the pool
+		long nanoTime = System.nanoTime();
+		for (int i = 0; i < timestamp.length; i++, nanoTime >>>= 8)
+			timestamp[i] = (byte) nanoTime;
+		pool.update(timestamp);
+
+		pool.update(frame, 0, Math.min(length, frame.length));
+		framesAdded++;
+
+		return true;
+	}
+
+	public synchronized int getFramesAdded() {
+		return framesAdded;
+	}
+
+	// Returns the SEED_LENGTH byte seed, frames added afterwards are ignored
+	public synchronized byte[] finish() {
+		if (finished)
+			throw new IllegalStateException("Seed was already taken");
+
+		finished = true;
+		Crypto.zeroByte(timestamp);
+
+		return pool.digest();
+	}
+}
@@ -0,0 +1,177 @@
+/*
+ * Copyright 2013 Matteo Hausner
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.bwravencl.androsqrl.utils;
+
+// Online health tests and min-entropy estimate for the camera noise, modelled
+// on NIST SP 800-90B. The noise samples are the differences between a fixed
+// set of luma pixels in consecutive frames, so that a static scene only
+// contributes sensor noise. Each frame runs the repetition count test
+// (section 4.4.1) and the adaptive proportion test (section 4.4.2) over its
+// samples. The most common value estimate (section 6.3.1) over all samples,
+// capped at the assessed entropy the test cutoffs are based on, is only
+// credited for INDEPENDENT_SAMPLES_PER_FRAME of them, so a frame of a weak
+// sensor is worth proportionally less.
+// Not thread-safe, frames must come from a single thread.
+public class EntropyEstimator {
+
+	// Assessed min-entropy per sample, the cutoffs below are derived from it
+	public static final double ASSESSED_ENTROPY_PER_SAMPLE = 0.5; // bits
+
+	// False positive probability alpha = 2^-ALPHA_EXPONENT
+	public static final int ALPHA_EXPONENT = 20;
+
+	public static final int REPETITION_COUNT_CUTOFF = 1 + (int) Math
+			.ceil(ALPHA_EXPONENT / ASSESSED_ENTROPY_PER_SAMPLE);
+	public static final int ADAPTIVE_PROPORTION_WINDOW = 512;
+	public static final int ADAPTIVE_PROPORTION_CUTOFF = adaptiveProportionCutoff(
+			ASSESSED_ENTROPY_PER_SAMPLE, ADAPTIVE_PROPORTION_WINDOW);
+
+	// Prime, so the sampled pixels don't line up with image rows
+	public static final int SAMPLE_STRIDE = 61;
+
+	// Image processing can correlate the noise of nearby pixels, which the
+	// estimate does not see, so only this many samples of a frame are taken
+	// to be independent
+	public static final int INDEPENDENT_SAMPLES_PER_FRAME = 128;
+	public static final double MAX_CREDITED_BITS_PER_FRAME = INDEPENDENT_SAMPLES_PER_FRAME
+			* ASSESSED_ENTROPY_PER_SAMPLE;
+
+	private static final double Z_ALPHA = 2.576; // 99% upper bound
+
+	private byte[] previousSamples;
+	private final int[] counts = new int[256];
+
+	private int lastSample = -1;
+	private int repetitionCount = 0;
+
+	private int windowSample = -1;
+	private int windowSize = 0;
+	private int windowCount = 0;
+
+	private double creditedBits = 0.0;
+	private boolean failed = false;
+
+	// Returns false if a health test failed, the estimator stays failed and
+	// credits no more entropy afterwards
+	public boolean addFrame(byte[] frame, int lumaLength) {
+		if (failed)
+			return false;
+
+		final int numSamples = Math.min(lumaLength, frame.length)
+				/ SAMPLE_STRIDE;
+
+		// The first frame only provides the reference for the differences
+		if (previousSamples == null || previousSamples.length != numSamples) {
+			previousSamples = new byte[numSamples];
+			for (int i = 0; i < numSamples; i++)
+				previousSamples[i] = frame[i * SAMPLE_STRIDE];
+			return true;
+		}
+
+		for (int i = 0; i < counts.length; i++)
+			counts[i] = 0;
+
+		for (int i = 0; i < numSamples; i++) {
+			final byte pixel = frame[i * SAMPLE_STRIDE];
+			final int sample = (pixel - previousSamples[i]) & 0xff;
+			previousSamples[i] = pixel;
+
+			if (!testSample(sample)) {
+				failed = true;
+				return false;
+			}
+
+			counts[sample]++;
+		}
+
+		creditedBits += Math.min(INDEPENDENT_SAMPLES_PER_FRAME, numSamples)
+				* estimateEntropyPerSample(numSamples);
+		return true;
+	}
+
+	public double getCreditedBits() {
+		return creditedBits;
+	}
+
+	public boolean hasFailed() {
+		return failed;
+	}
+
+	private boolean testSample(int sample) {
+		// Repetition count test: a stuck or dark sensor repeats its value
+		if (sample == lastSample) {
+			if (++repetitionCount >= REPETITION_COUNT_CUTOFF)
+				return false;
+		} else {
+			lastSample = sample;
+			repetitionCount = 1;
+		}
+
+		// Adaptive proportion test: one value dominating a window
+		if (windowSize == ADAPTIVE_PROPORTION_WINDOW) {
+			windowSample = -1;
+			windowSize = 0;
+		}
+		if (windowSample < 0) {
+			windowSample = sample;
+			windowCount = 0;
+		}
+		windowSize++;
+		if (sample == windowSample
+				&& ++windowCount >= ADAPTIVE_PROPORTION_CUTOFF)
+			return false;
+
+		return true;
+	}
+
+	// 1 + CritBinom(window, 2^-H, 1 - alpha), see section 4.4.2, gives 410 for
+	// H = 0.5 and a window of 512 like Table 2
+	private static int adaptiveProportionCutoff(double entropyPerSample,
+			int window) {
+		final double p = Math.pow(2.0, -entropyPerSample);
+		final double confidence = 1.0 - Math.pow(2.0, -ALPHA_EXPONENT);
+
+		// Sum the binomial distribution until it reaches the confidence
+		double probability = Math.pow(1.0 - p, window);
+		double cumulative = probability;
+		int k = 0;
+		while (cumulative < confidence && k < window) {
+			probability *= (double) (window - k) / (k + 1) * p / (1.0 - p);
+			cumulative += probability;
+			k++;
+		}
+
+		return 1 + k;
+	}
+
+	// Most common value estimate of the current frame's samples
+	private double estimateEntropyPerSample(int numSamples) {
+		if (numSamples < 2)
+			return 0.0;
+
+		int maxCount = 0;
+		for (int i = 0; i < counts.length; i++)
+			maxCount = Math.max(maxCount, counts[i]);
+
+		final double p = (double) maxCount / numSamples;
+		final double pUpper = Math.min(1.0,
+				p + Z_ALPHA * Math.sqrt(p * (1.0 - p) / (numSamples - 1)));
+		final double entropy = -Math.log(pUpper) / Math.log(2.0);
+
+		return Math.min(entropy, ASSESSED_ENTROPY_PER_SAMPLE);
+	}
+}
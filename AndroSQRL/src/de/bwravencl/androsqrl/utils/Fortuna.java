@@ -0,0 +1,413 @@
+/*
+ * Copyright 2013 Matteo Hausner
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.bwravencl.androsqrl.utils;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.security.SecureRandomSpi;
+import java.util.Timer;
+import java.util.TimerTask;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.SecretKeySpec;
+
+// Fortuna CSPRNG (Ferguson, Schneier, Kohno: Cryptography Engineering,
+// chapter 9) shared by the whole app. The generator is seeded from the
+// platform and the seed file, entropy events from the camera, callers and
+// request timing are spread over 32 SHA-256 pools, and the AES-256 generator
+// is reseeded from them at most every RESEED_INTERVAL. Small
+// requests are served from per-thread buffers so that the generator lock is
+// only taken once per BUFFER_SIZE bytes.
+public class Fortuna {
+
+	public static final int SOURCE_CAMERA = 0;
+	public static final int SOURCE_USER = 1;
+	public static final int SOURCE_TIMING = 2;
+
+	public static final String SEED_FILE_NAME = "random_seed";
+	public static final int SEED_FILE_LENGTH = 64;
+	public static final long SEED_FILE_UPDATE_INTERVAL = 10L * 60L * 1000L; // ms
+
+	private static final int NUM_POOLS = 32;
+	private static final int MIN_POOL_SIZE = 64;
+	private static final long RESEED_INTERVAL = 100L; // ms
+	private static final int MAX_REQUEST_LENGTH = 1 << 20;
+	private static final int MAX_EVENT_LENGTH = 32;
+	private static final int PLATFORM_SEED_LENGTH = 32;
+
+	private static final int BLOCK_LENGTH = 16;
+	private static final int KEY_LENGTH = 32;
+
+	// Requests up to this size are served from the per-thread buffer
+	private static final int MAX_BUFFERED_REQUEST_LENGTH = 64;
+	private static final int BUFFER_SIZE = 256;
+
+	private static Fortuna instance;
+	private static SecureRandom secureRandom;
+
+	private final MessageDigest[] pools = new MessageDigest[NUM_POOLS];
+	private int pool0Size = 0;
+	private final int[] nextPool = new int[256];
+	private long reseedCount = 0;
+	private long lastReseed = 0;
+
+	private final byte[] key = new byte[KEY_LENGTH];
+	private final byte[] counter = new byte[BLOCK_LENGTH];
+	private final byte[] block = new byte[BLOCK_LENGTH];
+	private final byte[] timing = new byte[8];
+	private final Cipher cipher;
+	private final MessageDigest reseedDigest;
+
+	// Guards the seed file, separate from the generator lock so that disk
+	// I/O never blocks callers waiting for random bytes
+	private final Object seedFileLock = new Object();
+	private Timer seedFileTimer;
+
+	private final ThreadLocal<byte[]> buffer = new ThreadLocal<byte[]>() {
+
+		@Override
+		protected byte[] initialValue() {
+			return new byte[BUFFER_SIZE];
+		}
+	};
+
+	// Index of the next unused byte in the per-thread buffer
+	private final ThreadLocal<int[]> bufferIndex = new ThreadLocal<int[]>() {
+
+		@Override
+		protected int[] initialValue() {
+			return new int[] { BUFFER_SIZE };
+		}
+	};
+
+	private Fortuna() {
+		try {
+			for (int i = 0; i < NUM_POOLS; i++)
+				pools[i] = MessageDigest.getInstance("SHA-256");
+			reseedDigest = MessageDigest.getInstance("SHA-256");
+			cipher = Cipher.getInstance("AES/ECB/NoPadding");
+		} catch (GeneralSecurityException e) {
+			throw new IllegalStateException(e);
+		}
+
+		// The platform generator is only asked once, so its seeding cost is
+		// paid once per process instead of once per call
+		final byte[] platformSeed = new byte[PLATFORM_SEED_LENGTH];
+		new SecureRandom().nextBytes(platformSeed);
+		reseed(platformSeed);
+		Crypto.zeroByte(platformSeed);
+	}
+
+	public static synchronized Fortuna getInstance() {
+		if (instance == null)
+			instance = new Fortuna();
+
+		return instance;
+	}
+
+	// SecureRandom view of the shared generator, for APIs that take one
+	public static synchronized SecureRandom getSecureRandom() {
+		if (secureRandom == null)
+			secureRandom = new FortunaSecureRandom(getInstance());
+
+		return secureRandom;
+	}
+
+	// Add an entropy event, events of each source are spread over the pools
+	// round-robin
+	public void addRandomEvent(int source, byte[] data, int offset, int length) {
+		if (length > MAX_EVENT_LENGTH) {
+			final byte[] hash = new byte[Crypto.SHA256_LENGTH];
+			Crypto.sha256Into(data, offset, length, hash, 0, hash.length);
+			addRandomEvent(source, hash, 0, hash.length);
+			Crypto.zeroByte(hash);
+			return;
+		}
+
+		synchronized (this) {
+			final int i = nextPool[source & 0xff];
+			nextPool[source & 0xff] = (i + 1) % NUM_POOLS;
+
+			pools[i].update((byte) source);
+			pools[i].update((byte) length);
+			pools[i].update(data, offset, length);
+
+			if (i == 0)
+				pool0Size += 2 + length;
+		}
+	}
+
+	public void addRandomEvent(int source, byte[] data) {
+		addRandomEvent(source, data, 0, data.length);
+	}
+
+	public void nextBytes(byte[] out) {
+		nextBytes(out, 0, out.length);
+	}
+
+	public void nextBytes(byte[] out, int offset, int length) {
+		if (length > MAX_BUFFERED_REQUEST_LENGTH) {
+			generate(out, offset, length);
+			return;
+		}
+
+		final byte[] buf = buffer.get();
+		final int[] index = bufferIndex.get();
+
+		while (length > 0) {
+			if (index[0] == BUFFER_SIZE) {
+				generate(buf, 0, BUFFER_SIZE);
+				index[0] = 0;
+			}
+
+			final int n = Math.min(length, BUFFER_SIZE - index[0]);
+			System.arraycopy(buf, index[0], out, offset, n);
+			// Served bytes must not stay around
+			Crypto.zeroByte(buf, index[0], n);
+
+			index[0] += n;
+			offset += n;
+			length -= n;
+		}
+	}
+
+	// Reseeds the generator from the seed file and replaces the file right
+	// away, so that the same seed is never used twice
+	public void loadSeedFile(File file) {
+		synchronized (seedFileLock) {
+			readSeedFile(file);
+			writeSeedFile(file);
+		}
+	}
+
+	private void readSeedFile(File file) {
+		if (file.length() == SEED_FILE_LENGTH) {
+			final byte[] seed = new byte[SEED_FILE_LENGTH];
+			FileInputStream in = null;
+			try {
+				in = new FileInputStream(file);
+				int read = 0;
+				while (read < seed.length) {
+					final int n = in.read(seed, read, seed.length - read);
+					if (n < 0)
+						break;
+					read += n;
+				}
+
+				if (read == seed.length)
+					synchronized (this) {
+						reseed(seed);
+					}
+			} catch (IOException e) {
+				e.printStackTrace();
+			} finally {
+				Crypto.zeroByte(seed);
+				if (in != null)
+					try {
+						in.close();
+					} catch (IOException e) {
+						e.printStackTrace();
+					}
+			}
+		}
+	}
+
+	// Writes a fresh seed to a temporary file and renames it over the old one
+	public void writeSeedFile(File file) {
+		synchronized (seedFileLock) {
+			writeSeed(file);
+		}
+	}
+
+	private void writeSeed(File file) {
+		final byte[] seed = new byte[SEED_FILE_LENGTH];
+		generate(seed, 0, seed.length);
+
+		final File tempFile = new File(file.getPath() + ".tmp");
+		FileOutputStream out = null;
+		try {
+			out = new FileOutputStream(tempFile);
+			out.write(seed);
+			out.getFD().sync();
+			out.close();
+			out = null;
+
+			if (!tempFile.renameTo(file))
+				throw new IOException("Could not rename " + tempFile + " to "
+						+ file);
+		} catch (IOException e) {
+			e.printStackTrace();
+			tempFile.delete();
+		} finally {
+			Crypto.zeroByte(seed);
+			if (out != null)
+				try {
+					out.close();
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+		}
+	}
+
+	// Reads the seed file and keeps it up to date while the process lives.
+	// Only the read happens on the calling thread, the file is replaced
+	// right away on the timer thread, since the synced write and rename are
+	// too slow for the main thread during startup.
+	public void useSeedFile(final File file) {
+		synchronized (seedFileLock) {
+			readSeedFile(file);
+
+			if (seedFileTimer != null)
+				seedFileTimer.cancel();
+
+			seedFileTimer = new Timer("fortuna-seed-file", true);
+			seedFileTimer.schedule(new TimerTask() {
+
+				@Override
+				public void run() {
+					writeSeedFile(file);
+				}
+			}, 0L, SEED_FILE_UPDATE_INTERVAL);
+		}
+	}
+
+	private synchronized void generate(byte[] out, int offset, int length) {
+		// The request timing is the one source that is always there
+		long nanoTime = System.nanoTime();
+		for (int i = 0; i < timing.length; i++, nanoTime >>>= 8)
+			timing[i] = (byte) nanoTime;
+		addRandomEvent(SOURCE_TIMING, timing, 0, timing.length);
+
+		final long now = System.currentTimeMillis();
+		if (pool0Size >= MIN_POOL_SIZE && now - lastReseed >= RESEED_INTERVAL) {
+			reseedCount++;
+			lastReseed = now;
+
+			// Pool i takes part in every 2^i-th reseed
+			final byte[] seed = new byte[NUM_POOLS * Crypto.SHA256_LENGTH];
+			int seedLength = 0;
+			for (int i = 0; i < NUM_POOLS; i++) {
+				if (i > 0 && (reseedCount & (1L << i) - 1) != 0)
+					break;
+				seedLength += digest(pools[i], seed, seedLength);
+			}
+			pool0Size = 0;
+
+			reseed(seed, seedLength);
+			Crypto.zeroByte(seed);
+		}
+
+		while (length > 0) {
+			final int n = Math.min(length, MAX_REQUEST_LENGTH);
+			generateBlocks(out, offset, n);
+			offset += n;
+			length -= n;
+
+			// Rekey after every request so earlier output can't be recovered
+			generateBlocks(key, 0, KEY_LENGTH);
+			initCipher();
+		}
+	}
+
+	private void generateBlocks(byte[] out, int offset, int length) {
+		try {
+			while (length > 0) {
+				cipher.doFinal(counter, 0, BLOCK_LENGTH, block, 0);
+				incrementCounter();
+
+				final int n = Math.min(length, BLOCK_LENGTH);
+				System.arraycopy(block, 0, out, offset, n);
+				offset += n;
+				length -= n;
+			}
+			Crypto.zeroByte(block);
+		} catch (GeneralSecurityException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private void reseed(byte[] seed) {
+		reseed(seed, seed.length);
+	}
+
+	// key = SHA-256(SHA-256(key || seed))
+	private void reseed(byte[] seed, int seedLength) {
+		reseedDigest.update(key);
+		reseedDigest.update(seed, 0, seedLength);
+		digest(reseedDigest, key, 0);
+		reseedDigest.update(key);
+		digest(reseedDigest, key, 0);
+
+		initCipher();
+		incrementCounter();
+	}
+
+	private void initCipher() {
+		try {
+			cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(key, "AES"));
+		} catch (GeneralSecurityException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private void incrementCounter() {
+		for (int i = 0; i < BLOCK_LENGTH && ++counter[i] == 0; i++)
+			;
+	}
+
+	private static int digest(MessageDigest digest, byte[] out, int offset) {
+		try {
+			return digest.digest(out, offset, Crypto.SHA256_LENGTH);
+		} catch (GeneralSecurityException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static class FortunaSecureRandom extends SecureRandom {
+
+		private static final long serialVersionUID = 1L;
+
+		FortunaSecureRandom(final Fortuna fortuna) {
+			super(new SecureRandomSpi() {
+
+				private static final long serialVersionUID = 1L;
+
+				@Override
+				protected void engineSetSeed(byte[] seed) {
+					fortuna.addRandomEvent(SOURCE_USER, seed);
+				}
+
+				@Override
+				protected void engineNextBytes(byte[] bytes) {
+					fortuna.nextBytes(bytes);
+				}
+
+				@Override
+				protected byte[] engineGenerateSeed(int numBytes) {
+					final byte[] seed = new byte[numBytes];
+					fortuna.nextBytes(seed);
+					return seed;
+				}
+			}, null);
+		}
+	}
+}
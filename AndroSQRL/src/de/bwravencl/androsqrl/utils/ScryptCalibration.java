@@ -0,0 +1,160 @@
+/*
+ * Copyright 2013 Matteo Hausner
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.bwravencl.androsqrl.utils;
+
+import java.security.GeneralSecurityException;
+
+import com.lambdaworks.crypto.KdfEngines;
+import com.lambdaworks.crypto.SCryptBackends;
+import com.lambdaworks.crypto.SCryptContext;
+
+import de.bwravencl.androsqrl.model.Identity;
+
+import android.app.ActivityManager;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.content.SharedPreferences.Editor;
+import android.preference.PreferenceManager;
+
+// Picks the strongest scrypt parameters for new identities that still unlock
+// within TARGET_UNLOCK_DURATION on this device and fit into the memory
+// available to the app. The result is measured once and cached.
+public class ScryptCalibration {
+
+	public static final String PREFERENCES_SCRYPT_CALIBRATED_N = "PREFERENCES_SCRYPT_CALIBRATED_N";
+	public static final String PREFERENCES_SCRYPT_CALIBRATED_r = "PREFERENCES_SCRYPT_CALIBRATED_r";
+	public static final String PREFERENCES_SCRYPT_CALIBRATED_p = "PREFERENCES_SCRYPT_CALIBRATED_p";
+
+	public static final long TARGET_UNLOCK_DURATION = 1000L; // ms
+
+	// Fraction of the app's memory class scrypt may use
+	public static final int MEMORY_CLASS_DIVISOR = 4;
+
+	public static final int MAX_N = 1 << 20;
+	public static final int MAX_p = 255;
+
+	private static Thread calibrationThread;
+
+	// Returns {N, r, p} without blocking, the normal parameters are used until
+	// the calibration has finished
+	public static int[] getParameters(Context context) {
+		final SharedPreferences sharedPreferences = PreferenceManager
+				.getDefaultSharedPreferences(context);
+
+		if (!sharedPreferences.contains(PREFERENCES_SCRYPT_CALIBRATED_N)) {
+			calibrateInBackground(context);
+
+			return new int[] { Identity.SCRYPT_NORMAL_PARAMETERS_N,
+					Identity.SCRYPT_NORMAL_PARAMETERS_r,
+					Identity.SCRYPT_NORMAL_PARAMETERS_p };
+		}
+
+		return new int[] {
+				sharedPreferences.getInt(PREFERENCES_SCRYPT_CALIBRATED_N,
+						Identity.SCRYPT_NORMAL_PARAMETERS_N),
+				sharedPreferences.getInt(PREFERENCES_SCRYPT_CALIBRATED_r,
+						Identity.SCRYPT_NORMAL_PARAMETERS_r),
+				sharedPreferences.getInt(PREFERENCES_SCRYPT_CALIBRATED_p,
+						Identity.SCRYPT_NORMAL_PARAMETERS_p) };
+	}
+
+	// Calibrates in the background on first run. The lock only guards
+	// starting the thread, the measurement itself runs without it.
+	public static synchronized void calibrateInBackground(final Context context) {
+		if (calibrationThread != null
+				|| PreferenceManager.getDefaultSharedPreferences(context)
+						.contains(PREFERENCES_SCRYPT_CALIBRATED_N))
+			return;
+
+		calibrationThread = new Thread("scrypt-calibration") {
+
+			@Override
+			public void run() {
+				calibrate(context);
+			}
+		};
+		calibrationThread.setPriority(Thread.MIN_PRIORITY);
+		calibrationThread.start();
+	}
+
+	// Measures the scrypt engine and stores the chosen parameters, only runs
+	// on the calibration thread
+	private static void calibrate(Context context) {
+		final ActivityManager activityManager = (ActivityManager) context
+				.getSystemService(Context.ACTIVITY_SERVICE);
+		final long memoryBudget = activityManager.getMemoryClass() * 1024L
+				* 1024L / MEMORY_CLASS_DIVISOR;
+
+		int N = Identity.SCRYPT_NORMAL_PARAMETERS_N;
+		final int r = Identity.SCRYPT_NORMAL_PARAMETERS_r;
+		int p = Identity.SCRYPT_NORMAL_PARAMETERS_p;
+
+		// Measure the engine that will actually be used
+		SCryptBackends.select();
+
+		try {
+			// Warm up, then grow N as long as both time and memory allow
+			measure(N, r, p);
+			long duration = measure(N, r, p);
+
+			while (N < MAX_N && duration * 2 <= TARGET_UNLOCK_DURATION
+					&& getMemoryUsage(N * 2, r, p) <= memoryBudget) {
+				N *= 2;
+				duration = measure(N, r, p);
+			}
+
+			// If memory is the limit, spend the remaining time on more lanes
+			while (p * 2 <= MAX_p && duration * 2 <= TARGET_UNLOCK_DURATION
+					&& getMemoryUsage(N, r, p * 2) <= memoryBudget) {
+				p *= 2;
+				duration = measure(N, r, p);
+			}
+		} catch (GeneralSecurityException e) {
+			e.printStackTrace();
+		}
+
+		// Don't keep the scratch space of the probed shapes around
+		SCryptContext.trim();
+
+		final Editor editor = PreferenceManager.getDefaultSharedPreferences(
+				context).edit();
+		editor.putInt(PREFERENCES_SCRYPT_CALIBRATED_N, N);
+		editor.putInt(PREFERENCES_SCRYPT_CALIBRATED_r, r);
+		editor.putInt(PREFERENCES_SCRYPT_CALIBRATED_p, p);
+		editor.commit();
+	}
+
+	// Scratch space needed when all processors work on separate lanes
+	private static long getMemoryUsage(int N, int r, int p) {
+		final int workers = Math.min(p, Runtime.getRuntime()
+				.availableProcessors());
+
+		return 128L * r * N * workers + 128L * r * p;
+	}
+
+	private static long measure(int N, int r, int p)
+			throws GeneralSecurityException {
+		final byte[] password = Crypto.makeRandom(16);
+		final byte[] salt = Crypto.makeRandom(8);
+
+		final long start = System.nanoTime();
+		KdfEngines.engine().derive(password, salt, N, r, p,
+				Identity.SCRYPT_NORMAL_PARAMETERS_dkLen);
+
+		return (System.nanoTime() - start) / 1000000L;
+	}
+}
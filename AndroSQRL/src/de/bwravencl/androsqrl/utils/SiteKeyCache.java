@@ -0,0 +1,149 @@
+/*
+ * Copyright 2013 Matteo Hausner
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.bwravencl.androsqrl.utils;
+
+import java.security.GeneralSecurityException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import com.github.dazoe.android.Ed25519;
+
+// Least recently used cache of the per-site keypairs of the unlocked
+// identity, so that logging in to the same site again skips both the HMAC
+// and the public key derivation. The HMAC keyed with the master key is kept
+// for the whole session as well. Evicted entries are wiped, clear() wipes
+// everything and has to be called when the session ends.
+public class SiteKeyCache {
+
+	public static final int MAX_ENTRIES = 16;
+
+	public static class SiteKey {
+
+		private final byte[] expandedPrivateKey;
+		private final byte[] publicKey;
+
+		private boolean wiped = false;
+
+		private SiteKey(byte[] expandedPrivateKey, byte[] publicKey) {
+			this.expandedPrivateKey = expandedPrivateKey;
+			this.publicKey = publicKey;
+		}
+
+		// The cache may be cleared at any time, so callers only get copies
+		public synchronized byte[] getPublicKey()
+				throws GeneralSecurityException {
+			checkNotWiped();
+
+			return publicKey.clone();
+		}
+
+		public synchronized byte[] sign(byte[] message)
+				throws GeneralSecurityException {
+			checkNotWiped();
+
+			try {
+				return Ed25519.SignWithExpandedKey(message, expandedPrivateKey,
+						publicKey);
+			} catch (Exception e) {
+				throw new GeneralSecurityException(e);
+			}
+		}
+
+		private void checkNotWiped() throws GeneralSecurityException {
+			if (wiped)
+				throw new GeneralSecurityException("Site key has been wiped");
+		}
+
+		private synchronized void wipe() {
+			wiped = true;
+			Crypto.zeroByte(expandedPrivateKey);
+			Crypto.zeroByte(publicKey);
+		}
+	}
+
+	private static final Map<String, SiteKey> siteKeys = new LinkedHashMap<String, SiteKey>(
+			MAX_ENTRIES, 0.75f, true) {
+
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, SiteKey> eldest) {
+			if (size() <= MAX_ENTRIES)
+				return false;
+
+			eldest.getValue().wipe();
+			return true;
+		}
+	};
+
+	private static Mac mac;
+	private static byte[] masterkeyHash;
+
+	public static synchronized SiteKey get(byte[] masterkey, String domain)
+			throws GeneralSecurityException {
+		// Another identity has been unlocked, its keys must not be mixed up
+		if (masterkeyHash == null
+				|| !Crypto.sha256Equals(masterkey, masterkeyHash)) {
+			clear();
+
+			mac = Mac.getInstance("HmacSHA256");
+			mac.init(new SecretKeySpec(masterkey, "HmacSHA256"));
+			masterkeyHash = Crypto.sha256(masterkey);
+		}
+
+		SiteKey siteKey = siteKeys.get(domain);
+		if (siteKey == null) {
+			final byte[] privateKey = mac.doFinal(domain.getBytes());
+			try {
+				siteKey = new SiteKey(Ed25519.ExpandPrivateKey(privateKey),
+						Ed25519.PublicKeyFromPrivateKey(privateKey));
+			} catch (Exception e) {
+				throw new GeneralSecurityException(e);
+			} finally {
+				Crypto.zeroByte(privateKey);
+			}
+			siteKeys.put(domain, siteKey);
+		}
+
+		return siteKey;
+	}
+
+	public static synchronized void clear() {
+		for (SiteKey siteKey : siteKeys.values())
+			siteKey.wipe();
+		siteKeys.clear();
+
+		if (mac != null) {
+			// The key copy inside the Mac can't be wiped, but re-keying
+			// overwrites the pads derived from it
+			try {
+				mac.init(new SecretKeySpec(new byte[Crypto.SHA256_LENGTH],
+						"HmacSHA256"));
+			} catch (GeneralSecurityException e) {
+				e.printStackTrace();
+			}
+			mac = null;
+		}
+
+		if (masterkeyHash != null)
+			Crypto.zeroByte(masterkeyHash);
+		masterkeyHash = null;
+	}
+}
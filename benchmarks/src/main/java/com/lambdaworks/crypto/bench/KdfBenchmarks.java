@@ -0,0 +1,47 @@
+/*
+ * Copyright 2013 Matteo Hausner
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.lambdaworks.crypto.bench;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Entry point of the benchmark jar. Runs the benchmarks selected on the command line
+ * (all by default) with the GC profiler enabled, so allocation rates are reported, and
+ * writes the results as JSON to {@code jmh-result.json} unless another result file or
+ * format is given.
+ *
+ * Usage: <code>java -jar target/benchmarks.jar [JMH options] [regexp]</code>
+ */
+public class KdfBenchmarks {
+    public static void main(String[] args) throws Exception {
+        CommandLineOptions cmd = new CommandLineOptions(args);
+
+        OptionsBuilder builder = new OptionsBuilder();
+        builder.parent(cmd);
+        builder.addProfiler(GCProfiler.class);
+        if (!cmd.getResultFormat().hasValue()) builder.resultFormat(ResultFormatType.JSON);
+        if (!cmd.getResult().hasValue()) builder.result("jmh-result.json");
+
+        Options options = builder.build();
+        new Runner(options).run();
+    }
+}
@@ -0,0 +1,93 @@
+/*
+ * Copyright 2013 Matteo Hausner
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.lambdaworks.crypto.bench;
+
+import com.lambdaworks.crypto.PBKDF;
+import com.lambdaworks.crypto.PBKDF2HmacSHA256;
+import org.openjdk.jmh.annotations.*;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.security.GeneralSecurityException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks of {@link PBKDF#pbkdf2} and {@link PBKDF2HmacSHA256} with the output lengths scrypt requests for the
+ * normal (128 * 8 * 12) and export (128 * 8 * 90) parameters, and with iteration counts
+ * typical for stand-alone password hashing.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class PBKDFBenchmark {
+    @Param({"32", "12288", "92160"})
+    public int dkLen;
+
+    @Param({"1", "1000"})
+    public int c;
+
+    byte[] passwd;
+    byte[] salt;
+    byte[] DK;
+    int threads;
+    ExecutorService executor;
+
+    @Setup
+    public void setup() {
+        passwd = "correct horse battery staple".getBytes();
+        salt   = new byte[] { 1, 2, 3, 4, 5, 6, 7, 8 };
+        DK     = new byte[dkLen];
+
+        threads  = Runtime.getRuntime().availableProcessors();
+        executor = Executors.newFixedThreadPool(threads);
+    }
+
+    @TearDown
+    public void tearDown() {
+        executor.shutdown();
+    }
+
+    @Benchmark
+    public byte[] pbkdf2() throws GeneralSecurityException {
+        return PBKDF.pbkdf2("HmacSHA256", passwd, salt, c, dkLen);
+    }
+
+    @Benchmark
+    public byte[] pbkdf2HmacSHA256() throws GeneralSecurityException {
+        new PBKDF2HmacSHA256(passwd).pbkdf2(salt, c, DK, dkLen);
+        return DK;
+    }
+
+    @Benchmark
+    public byte[] pbkdf2Parallel() throws GeneralSecurityException {
+        Mac mac = Mac.getInstance("HmacSHA256");
+        mac.init(new SecretKeySpec(passwd, "HmacSHA256"));
+        PBKDF.pbkdf2(mac, salt, c, DK, dkLen, executor, threads);
+        return DK;
+    }
+
+    @Benchmark
+    public byte[] pbkdf2HmacSHA256Parallel() throws GeneralSecurityException {
+        new PBKDF2HmacSHA256(passwd).pbkdf2(salt, c, DK, dkLen, executor, threads);
+        return DK;
+    }
+}
@@ -0,0 +1,61 @@
+/*
+ * Copyright 2013 Matteo Hausner
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.lambdaworks.crypto.bench;
+
+import com.lambdaworks.crypto.SCryptUtil;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks of hashing and verifying passwords in the {@link SCryptUtil} format.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class SCryptUtilBenchmark {
+    @Param({"16:8:12", "32:8:90", "1024:8:1", "16384:8:1"})
+    public String shape;
+
+    String passwd;
+    String hashed;
+    int N, r, p;
+
+    @Setup
+    public void setup() {
+        String[] params = shape.split(":");
+        N = Integer.parseInt(params[0]);
+        r = Integer.parseInt(params[1]);
+        p = Integer.parseInt(params[2]);
+
+        passwd = "correct horse battery staple";
+        hashed = SCryptUtil.scrypt(passwd, N, r, p);
+    }
+
+    @Benchmark
+    public String scrypt() {
+        return SCryptUtil.scrypt(passwd, N, r, p);
+    }
+
+    @Benchmark
+    public boolean check() {
+        return SCryptUtil.check(passwd, hashed);
+    }
+}